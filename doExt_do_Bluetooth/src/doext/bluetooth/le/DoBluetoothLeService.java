@@ -16,7 +16,18 @@
 
 package doext.bluetooth.le;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import core.DoServiceContainer;
 import android.R.integer;
@@ -27,13 +38,16 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -42,117 +56,807 @@ import android.util.Log;
  */
 public class DoBluetoothLeService extends Service {
 	private final static String TAG = DoBluetoothLeService.class.getSimpleName();
-	private PendingWrite mPendingWrite;
 
 	private BluetoothManager mBluetoothManager;
 	private BluetoothAdapter mBluetoothAdapter;
-	private String mBluetoothDeviceAddress;
-	private BluetoothGatt mBluetoothGatt;
-	public static final int STATE_DISCONNECTED = 0;
-	public static final int STATE_CONNECTING = 1;
-	public static final int STATE_CONNECTED = 2;
+	// 设备地址 -> 连接，每个外设有独立的BluetoothGatt和操作队列
+	private final Map<String, DoGattConnection> mConnections = new ConcurrentHashMap<String, DoGattConnection>();
+	// 服务发现后向外设申请的MTU
+	public static final int REQUEST_MTU = 247;
+	// GATT结构快照的保存目录，未设置时不保存
+	private volatile File mLayoutCacheDir;
+	// 等待中的重连，设备地址 -> 重连任务
+	private final Map<String, Reconnect> mReconnects = new ConcurrentHashMap<String, Reconnect>();
+	// 回调处理、超时和重连任务都在工作线程上执行
+	private final Handler mHandler = DoBluetoothWorker.getHandler();
+	// 所有未释放的GATT客户端，包括已经不在连接池中的，用于发现并关闭泄漏的客户端
+	private final Set<DoGattConnection> mGattClients = Collections.newSetFromMap(new ConcurrentHashMap<DoGattConnection, Boolean>());
+
+	// 发起连接后等待连接建立、连接建立后等待服务发现和MTU协商完成的超时时间，单位毫秒，不大于0时不限制
+	public static final long DEFAULT_CONNECT_TIMEOUT = 10000;
+	public static final long DEFAULT_DISCOVERY_TIMEOUT = 10000;
+	private volatile long mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private volatile long mDiscoveryTimeout = DEFAULT_DISCOVERY_TIMEOUT;
+	// 主动断开后等待断开回调的时间，超时后直接释放
+	private static final long DISCONNECT_TIMEOUT = 2000;
+
+	// 连接失败的错误码，与读写操作的错误码1、2、3区分
+	public static final int ERROR_CONNECT_TIMEOUT = 4;
+	public static final int ERROR_DISCOVERY_TIMEOUT = 5;
+	public static final int ERROR_TOO_MANY_CONNECTIONS = 6;
+
+	// 蓝牙控制器通常最多同时维持7个连接
+	public static final int MAX_CONNECTIONS = 7;
+	// 进行中的批量连接
+	private final List<DoConnectBatch> mConnectBatches = new CopyOnWriteArrayList<DoConnectBatch>();
+	// 等待连接就绪的连接并订阅流程，设备地址 -> 流程
+	private final Map<String, DoConnectPipeline> mPipelines = new ConcurrentHashMap<String, DoConnectPipeline>();
 
 	public final static String ACTION_GATT_CONNECTED = "do.ext.bluetooth.le.ACTION_GATT_CONNECTED";
 	public final static String ACTION_GATT_DISCONNECTED = "do.ext.bluetooth.le.ACTION_GATT_DISCONNECTED";
 	public final static String ACTION_GATT_SERVICES_DISCOVERED = "do.ext.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
 	public final static String ACTION_DATA_AVAILABLE = "do.ext.bluetooth.le.ACTION_DATA_AVAILABLE";
+	public final static String ACTION_GATT_RECONNECTING = "do.ext.bluetooth.le.ACTION_GATT_RECONNECTING";
+	public final static String ACTION_GATT_RECONNECT_FAILED = "do.ext.bluetooth.le.ACTION_GATT_RECONNECT_FAILED";
+	public final static String ACTION_GATT_CONNECT_TIMEOUT = "do.ext.bluetooth.le.ACTION_GATT_CONNECT_TIMEOUT";
+	public final static String ACTION_GATT_DISCOVERY_TIMEOUT = "do.ext.bluetooth.le.ACTION_GATT_DISCOVERY_TIMEOUT";
+	public final static String ACTION_GATT_STATE_CHANGED = "do.ext.bluetooth.le.ACTION_GATT_STATE_CHANGED";
 
 	public final static String EXTRA_DATA = "do.ext.bluetooth.le.EXTRA_DATA";
+	public final static String EXTRA_ADDRESS = "do.ext.bluetooth.le.EXTRA_ADDRESS";
+	public final static String EXTRA_ATTEMPT = "do.ext.bluetooth.le.EXTRA_ATTEMPT";
+	public final static String EXTRA_DELAY = "do.ext.bluetooth.le.EXTRA_DELAY";
+	public final static String EXTRA_AUTO_CONNECT = "do.ext.bluetooth.le.EXTRA_AUTO_CONNECT";
+	public final static String EXTRA_STATE_FROM = "do.ext.bluetooth.le.EXTRA_STATE_FROM";
+	public final static String EXTRA_STATE_TO = "do.ext.bluetooth.le.EXTRA_STATE_TO";
+	public final static String EXTRA_TIME = "do.ext.bluetooth.le.EXTRA_TIME";
+	public final static String EXTRA_DURATION = "do.ext.bluetooth.le.EXTRA_DURATION";
 	public final static String CHARACTERISTIC_UUID = "do.ext.bluetooth.le.CHARACTERISTIC_UUID";
 
 	public final static UUID UUID_HEART_RATE_MEASUREMENT = UUID.fromString(DoGattAttributes.HEART_RATE_MEASUREMENT);
 
 	// Implements callback methods for GATT events that the app cares about. For
 	// example,connection change and services discovered.
-	private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+	// 每个连接使用单独的回调对象，回调中只访问自己的连接；
+	// 回调在蓝牙Binder线程上到达，全部转到工作线程按顺序处理，与超时、重连任务不会并发
+	private class GattCallback extends BluetoothGattCallback {
+		private final DoGattConnection connection;
+		// 外设的服务发生变化后重新发现服务，此时只刷新特征缓存
+		private boolean isServiceChanged;
+
+		GattCallback(DoGattConnection connection) {
+			this.connection = connection;
+		}
+
 		@Override
-		public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-			String intentAction;
+		public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					handleConnectionStateChange(gatt, status, newState);
+				}
+			});
+		}
+
+		private void handleConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+			String address = connection.getAddress();
 			if (newState == BluetoothProfile.STATE_CONNECTED) {
-				intentAction = ACTION_GATT_CONNECTED;
-				broadcastUpdate(intentAction);
-				Log.d(TAG, "ble device connected");
+				// 主动断开或已经关闭后才建立的连接不再发现服务，等待断开回调
+				if (!setState(connection, DoGattConnection.STATE_DISCOVERING)) {
+					return;
+				}
+				connection.setConnectedTime(SystemClock.elapsedRealtime());
+				startWatchdog(connection, ACTION_GATT_DISCOVERY_TIMEOUT, mDiscoveryTimeout);
+				broadcastUpdate(address, ACTION_GATT_CONNECTED);
+				Log.d(TAG, "ble device connected:" + address);
 				// Attempts to discover services after successful connection.
-				boolean isSuccess = mBluetoothGatt.discoverServices();
+				boolean isSuccess = gatt.discoverServices();
 				Log.d(TAG, "Attempting to start service discovery:" + isSuccess);
+				if (!isSuccess) {
+					onDiscoveryFailed(connection);
+				}
 
 			} else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-				intentAction = ACTION_GATT_DISCONNECTED;
-				Log.d(TAG, "ble device disconnected");
-				broadcastUpdate(intentAction);
-				if (mBluetoothGatt != null) {
-					mBluetoothGatt.disconnect();
-					mBluetoothGatt.close();
-				}
-			} else if (newState == BluetoothProfile.STATE_CONNECTING) {
-			} else if (newState == BluetoothProfile.STATE_DISCONNECTING) {
-				if (mBluetoothGatt != null) {
-					mBluetoothGatt.close();
-				}
+				Log.d(TAG, "ble device disconnected:" + address + ", status:" + status);
+				onConnectionLost(connection, ACTION_GATT_DISCONNECTED);
 			}
 		}
 
 		@Override
-		public void onServicesDiscovered(final BluetoothGatt gatt, int status) {
+		public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					handleServicesDiscovered(gatt, status);
+				}
+			});
+		}
+
+		private void handleServicesDiscovered(BluetoothGatt gatt, int status) {
 			Log.d(TAG, " service discovered and status = " + status);
 			if (status == BluetoothGatt.GATT_SUCCESS) {
-				broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
+				connection.getCharacteristicCache().fill(gatt);
+				connection.setLayout(DoGattLayout.from(gatt));
+				if (isServiceChanged) {
+					// 服务变化后原来的订阅不再有效
+					isServiceChanged = false;
+					stopWatchdog(connection);
+					saveLayout(connection);
+					setState(connection, DoGattConnection.STATE_READY);
+					return;
+				}
+				connection.setDiscoveredTime(SystemClock.elapsedRealtime());
+				// 先协商MTU，协商完成后再通知服务已发现，避免与后续的读写操作冲突
+				requestMtu(connection);
 			} else {
 				Log.w(TAG, "onServicesDiscovered received: " + status);
+				onDiscoveryFailed(connection);
 			}
 		}
 
-		public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-			if (status == BluetoothGatt.GATT_SUCCESS) {
-				if (mPendingWrite == null) {
-					return;
+		// Android 12新增的回调，不加@Override以便在低版本SDK上编译，更早的系统不会调用
+		public void onServiceChanged(final BluetoothGatt gatt) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					Log.d(TAG, "service changed:" + connection.getAddress());
+					// 首次服务发现还未完成时不需要重新发现
+					if (!setState(connection, DoGattConnection.STATE_DISCOVERING)) {
+						return;
+					}
+					connection.getCharacteristicCache().clear();
+					isServiceChanged = true;
+					startWatchdog(connection, ACTION_GATT_DISCOVERY_TIMEOUT, mDiscoveryTimeout);
+					if (!gatt.discoverServices()) {
+						onDiscoveryFailed(connection);
+					}
 				}
-				Object followStr = mPendingWrite.getNextContent();
-				if (followStr == null) {
-					Log.d(TAG, "write buffer success:" + mPendingWrite.toString());
-					mPendingWrite = null;
-				} else {
-					Log.d(TAG, "write buffer part:" + followStr);
-					if (followStr instanceof byte[]) {
-						characteristic.setValue((byte[]) followStr);
-					} else {
-						characteristic.setValue(followStr.toString());
+			});
+		}
+
+		@Override
+		public void onMtuChanged(BluetoothGatt gatt, final int mtu, final int status) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					Log.d(TAG, "mtu changed:" + mtu + " and status = " + status);
+					if (status == BluetoothGatt.GATT_SUCCESS) {
+						connection.setMtu(mtu);
 					}
-					mBluetoothGatt.writeCharacteristic(characteristic);
+					onOperationResult(DoGattOperation.TYPE_MTU, status);
 				}
-			} else {
-				Log.w(TAG, "write char fail");
-			}
+			});
+		}
 
-		};
+		@Override
+		public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+			if (status != BluetoothGatt.GATT_SUCCESS) {
+				Log.w(TAG, "write char fail:" + status);
+			}
+			postOperationResult(DoGattOperation.TYPE_WRITE, status);
+		}
 
 		@Override
 		public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
 			if (status == BluetoothGatt.GATT_SUCCESS) {
-				broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+				postData(characteristic);
 			}
+			postOperationResult(DoGattOperation.TYPE_READ, status);
+		}
+
+		@Override
+		public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+			postOperationResult(DoGattOperation.TYPE_DESCRIPTOR_WRITE, status);
 		}
 
 		@Override
 		public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-			broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+			postData(characteristic);
 		}
-	};
 
-	private void broadcastUpdate(final String action) {
-		final Intent intent = new Intent(action);
+		// 下一次通知会覆盖特征上的值，需要在Binder线程上先复制
+		private void postData(final BluetoothGattCharacteristic characteristic) {
+			byte[] value = characteristic.getValue();
+			if (value == null || value.length == 0) {
+				return;
+			}
+			final byte[] data = value.clone();
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					broadcastUpdate(connection.getAddress(), ACTION_DATA_AVAILABLE, characteristic, data);
+				}
+			});
+		}
+
+		private void postOperationResult(final int type, final int status) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					onOperationResult(type, status);
+				}
+			});
+		}
+
+		private void onOperationResult(int type, int status) {
+			DoGattOperationQueue operationQueue = connection.getOperationQueue();
+			if (operationQueue != null) {
+				operationQueue.onResult(type, status);
+			}
+		}
+	}
+
+	// 连接并订阅流程可以指定MTU或者不协商
+	private void requestMtu(final DoGattConnection connection) {
+		DoConnectPipeline pipeline = mPipelines.get(connection.getAddress());
+		int mtu = pipeline == null ? REQUEST_MTU : pipeline.getMtu();
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || mtu <= DoGattConnection.DEFAULT_MTU) {
+			onConnectionReady(connection);
+			return;
+		}
+		DoGattOperationQueue operationQueue = connection.getOperationQueue();
+		if (operationQueue == null) {
+			return;
+		}
+		operationQueue.enqueue(new DoGattOperation.RequestMtu(mtu, new DoGattOperation.OnCompleteListener() {
+			@Override
+			public void onComplete(DoGattOperation operation, int result) {
+				onConnectionReady(connection);
+			}
+		}));
+	}
+
+	/**
+	 * 设置连接和服务发现的超时时间，对之后发起的连接生效
+	 */
+	public void setTimeouts(long connectTimeout, long discoveryTimeout) {
+		mConnectTimeout = connectTimeout;
+		mDiscoveryTimeout = discoveryTimeout;
+	}
+
+	private void startWatchdog(final DoGattConnection connection, final String action, long timeout) {
+		Runnable watchdog = null;
+		if (timeout > 0) {
+			watchdog = new Runnable() {
+				@Override
+				public void run() {
+					if (mConnections.get(connection.getAddress()) != connection) {
+						return;
+					}
+					Log.w(TAG, action + ":" + connection.getAddress());
+					BluetoothGatt gatt = connection.getGatt();
+					if (gatt != null) {
+						gatt.disconnect();
+					}
+					onConnectionLost(connection, action);
+				}
+			};
+		}
+		Runnable old = connection.setWatchdog(watchdog);
+		if (old != null) {
+			mHandler.removeCallbacks(old);
+		}
+		if (watchdog != null) {
+			mHandler.postDelayed(watchdog, timeout);
+		}
+	}
+
+	private void stopWatchdog(DoGattConnection connection) {
+		startWatchdog(connection, null, 0);
+	}
+
+	private boolean isOnWorker() {
+		return Looper.myLooper() == mHandler.getLooper();
+	}
+
+	/**
+	 * 在工作线程上执行并等待结果；连接池和连接状态只在工作线程上修改，
+	 * 对外的方法从其他线程调用时都经过这里或mHandler.post转到工作线程
+	 */
+	private <T> T callOnWorker(Callable<T> task) {
+		FutureTask<T> future = new FutureTask<T>(task);
+		if (isOnWorker()) {
+			future.run();
+		} else {
+			mHandler.post(future);
+		}
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	// 服务发现无法开始或失败时断开连接，按服务发现超时处理，避免连接一直停在DISCOVERING
+	private void onDiscoveryFailed(DoGattConnection connection) {
+		if (mConnections.get(connection.getAddress()) != connection) {
+			return;
+		}
+		Log.w(TAG, "service discovery failed:" + connection.getAddress());
+		BluetoothGatt gatt = connection.getGatt();
+		if (gatt != null) {
+			gatt.disconnect();
+		}
+		onConnectionLost(connection, ACTION_GATT_DISCOVERY_TIMEOUT);
+	}
+
+	/**
+	 * 连接断开或超时，释放GATT客户端并按重连策略重连；断开回调和超时任务可能同时到达，只处理一次
+	 *
+	 * @param action
+	 *            ACTION_GATT_DISCONNECTED、ACTION_GATT_CONNECT_TIMEOUT或ACTION_GATT_DISCOVERY_TIMEOUT
+	 */
+	private void onConnectionLost(DoGattConnection connection, String action) {
+		String address = connection.getAddress();
+		setState(connection, DoGattConnection.STATE_CLOSED);
+		boolean isRemoved = mConnections.remove(address, connection);
+		stopWatchdog(connection);
+		releaseClient(connection);
+		if (!isRemoved) {
+			return;
+		}
+		// 重连过程中失败的尝试不再重复通知断开
+		if (connection.wasReady() || connection.getReconnectAttempts() == 0) {
+			broadcastUpdate(address, action);
+		}
+		if (!scheduleReconnect(connection)) {
+			int result = -1;
+			if (ACTION_GATT_CONNECT_TIMEOUT.equals(action)) {
+				result = ERROR_CONNECT_TIMEOUT;
+			} else if (ACTION_GATT_DISCOVERY_TIMEOUT.equals(action)) {
+				result = ERROR_DISCOVERY_TIMEOUT;
+			}
+			notifyConnectResult(address, result);
+		}
+	}
+
+	/**
+	 * 批量连接，同时最多concurrency个设备处于连接、服务发现阶段；
+	 * 设备就绪、连接失败或设置了重连策略时重连失败后得到结果
+	 */
+	public void connectMany(final List<String> addresses, final int concurrency, final DoReconnectPolicy reconnectPolicy, final DoConnectBatch.OnConnectBatchListener listener) {
+		if (!isOnWorker()) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					connectMany(addresses, concurrency, reconnectPolicy, listener);
+				}
+			});
+			return;
+		}
+		DoConnectBatch batch = new DoConnectBatch(addresses, Math.min(concurrency, MAX_CONNECTIONS), new DoConnectBatch.Connector() {
+			@Override
+			public int connect(String address) {
+				// 格式不正确的地址作为连接失败计入结果，不交给系统
+				if (!BluetoothAdapter.checkBluetoothAddress(address)) {
+					Log.w(TAG, "invalid address, skip " + address);
+					return -1;
+				}
+				DoGattConnection connection = mConnections.get(address);
+				if (connection != null && connection.getState() == DoGattConnection.STATE_READY) {
+					return 0;
+				}
+				if (connection == null && mConnections.size() >= MAX_CONNECTIONS) {
+					Log.w(TAG, "too many connections, skip " + address);
+					return ERROR_TOO_MANY_CONNECTIONS;
+				}
+				return DoBluetoothLeService.this.connect(address, reconnectPolicy) ? DoConnectBatch.PENDING : -1;
+			}
+		}, listener);
+		mConnectBatches.add(batch);
+		batch.next();
+		if (batch.isFinished()) {
+			mConnectBatches.remove(batch);
+		}
+	}
+
+	private void notifyConnectResult(String address, int result) {
+		DoConnectPipeline pipeline = mPipelines.remove(address);
+		if (pipeline != null) {
+			DoGattConnection connection = mConnections.get(address);
+			if (result == 0 && connection != null) {
+				subscribe(connection, pipeline, false);
+			} else {
+				pipeline.finish(result);
+			}
+		}
+		for (DoConnectBatch batch : mConnectBatches) {
+			if (batch.onResult(address, result) && batch.isFinished()) {
+				mConnectBatches.remove(batch);
+			}
+		}
+	}
+
+	/**
+	 * 连接、发现服务、协商MTU并开启通知，全部在原生层完成，结束后通过pipeline的监听通知结果和各阶段耗时；
+	 * 设备已经就绪时直接开启通知
+	 */
+	public void connectAndSubscribe(final DoConnectPipeline pipeline, final DoReconnectPolicy reconnectPolicy) {
+		if (!isOnWorker()) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					connectAndSubscribe(pipeline, reconnectPolicy);
+				}
+			});
+			return;
+		}
+		String address = pipeline.getAddress();
+		if (address == null || !BluetoothAdapter.checkBluetoothAddress(address)) {
+			Log.w(TAG, "invalid address:" + address);
+			pipeline.finish(-1);
+			return;
+		}
+		DoGattConnection connection = mConnections.get(address);
+		if (connection != null && connection.getState() == DoGattConnection.STATE_READY) {
+			subscribe(connection, pipeline, true);
+			return;
+		}
+		if (mPipelines.containsKey(address)) {
+			Log.w(TAG, "connect and subscribe is running:" + address);
+			pipeline.finish(-1);
+			return;
+		}
+		mPipelines.put(address, pipeline);
+		if (!connect(address, reconnectPolicy) && mPipelines.remove(address, pipeline)) {
+			pipeline.finish(-1);
+		}
+	}
+
+	// 依次开启通知，操作队列保证同一时间只有一个描述符写入
+	private void subscribe(final DoGattConnection connection, final DoConnectPipeline pipeline, boolean isExisting) {
+		pipeline.onReady(connection, isExisting);
+		List<String[]> subscriptions = pipeline.getSubscriptions();
+		if (subscriptions.isEmpty()) {
+			pipeline.finish(0);
+			return;
+		}
+		for (int i = 0; i < subscriptions.size(); i++) {
+			final int index = i;
+			String[] subscription = subscriptions.get(i);
+			int result = setListener(connection.getAddress(), true, subscription[0], subscription[1], pipeline.getEncoding(i), new DoGattOperation.OnCompleteListener() {
+				@Override
+				public void onComplete(DoGattOperation operation, int result) {
+					onSubscribed(connection, pipeline, index, result);
+				}
+			});
+			if (result != 0) {
+				onSubscribed(connection, pipeline, index, result);
+			}
+		}
+	}
+
+	// 开启通知的过程中连接断开，后面的特征都不会成功，整个流程按连接失败结束
+	private void onSubscribed(DoGattConnection connection, DoConnectPipeline pipeline, int index, int result) {
+		if (result != 0 && connection.getState() != DoGattConnection.STATE_READY) {
+			pipeline.finish(-1);
+			return;
+		}
+		pipeline.onSubscribed(index, result);
+	}
+
+	private void releaseClient(DoGattConnection connection) {
+		mGattClients.remove(connection);
+		connection.close();
+	}
+
+	/**
+	 * 关闭已经不在连接池中却仍未释放的GATT客户端，避免占满蓝牙控制器的客户端数量
+	 *
+	 * @return 关闭的客户端数
+	 */
+	public int closeLeakedClients() {
+		if (!isOnWorker()) {
+			return callOnWorker(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return closeLeakedClients();
+				}
+			});
+		}
+		int count = 0;
+		for (DoGattConnection connection : mGattClients) {
+			if (mConnections.get(connection.getAddress()) != connection) {
+				Log.w(TAG, "close leaked gatt client:" + connection.getAddress());
+				releaseClient(connection);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * 未释放的GATT客户端数
+	 */
+	public int getGattClientCount() {
+		return mGattClients.size();
+	}
+
+	// 恢复快照中的订阅，恢复操作排在队列前面，之后JS发起的读写依次执行
+	private void onConnectionReady(DoGattConnection connection) {
+		// 服务发现期间主动断开或已经关闭
+		if (!setState(connection, DoGattConnection.STATE_READY)) {
+			return;
+		}
+		int restored = 0;
+		DoGattOperationQueue operationQueue = connection.getOperationQueue();
+		if (connection.isLayoutMatched() && operationQueue != null) {
+			DoGattLayout layout = connection.getLayout();
+			OnGattEventListener listener = mGattEventListener;
+			for (String[] subscription : layout.getSubscriptions()) {
+				Object result = getGattCharacteristic(connection, subscription[0], subscription[1]);
+				if (result instanceof BluetoothGattCharacteristic) {
+					operationQueue.enqueue(new DoGattOperation.EnableNotification((BluetoothGattCharacteristic) result, null));
+					restored++;
+					if (listener != null) {
+						listener.onSubscriptionRestored(connection.getAddress(), subscription[0], subscription[1], layout.getEncoding(subscription[0], subscription[1]));
+					}
+				}
+			}
+		}
+		connection.setRestoredSubscriptions(restored);
+		connection.setReady(SystemClock.elapsedRealtime());
+		stopWatchdog(connection);
+		Log.d(TAG, "connection ready:" + connection.getAddress() + ", elapsed:" + connection.getConnectElapsed() + ", layout matched:" + connection.isLayoutMatched() + ", restored:" + restored);
+		saveLayout(connection);
+		broadcastUpdate(connection.getAddress(), ACTION_GATT_SERVICES_DISCOVERED);
+		notifyConnectResult(connection.getAddress(), 0);
+	}
+
+	// 等待一段时间后重新连接，重连成功后通过ACTION_GATT_SERVICES_DISCOVERED通知
+	private class Reconnect implements Runnable {
+		private final String address;
+		private final DoReconnectPolicy policy;
+		private final int attempt;
+		private final long disconnectTime;
+
+		Reconnect(String address, DoReconnectPolicy policy, int attempt, long disconnectTime) {
+			this.address = address;
+			this.policy = policy;
+			this.attempt = attempt;
+			this.disconnectTime = disconnectTime;
+		}
+
+		@Override
+		public void run() {
+			if (!mReconnects.remove(address, this)) {
+				return;
+			}
+			if (!connect(address, policy, false, attempt, disconnectTime)) {
+				broadcastUpdate(address, ACTION_GATT_RECONNECT_FAILED);
+				notifyConnectResult(address, -1);
+			}
+		}
+	}
+
+	/**
+	 * 意外断开后按重连策略安排下一次尝试，主动断开或没有设置策略时不重连
+	 *
+	 * @return 是否会继续重连
+	 */
+	private boolean scheduleReconnect(DoGattConnection connection) {
+		DoReconnectPolicy policy = connection.getReconnectPolicy();
+		if (policy == null || connection.isClosing() || mBluetoothAdapter == null) {
+			return false;
+		}
+		String address = connection.getAddress();
+		boolean isFirst = connection.wasReady() || connection.getReconnectAttempts() == 0;
+		int attempt = isFirst ? 1 : connection.getReconnectAttempts() + 1;
+		long disconnectTime = isFirst ? SystemClock.elapsedRealtime() : connection.getDisconnectTime();
+		if (attempt > policy.getMaxAttempts()) {
+			// autoConnect的连接由系统一直等待，它也断开时放弃
+			if (policy.isAutoConnect() && attempt == policy.getMaxAttempts() + 1) {
+				Log.d(TAG, "hand off to autoConnect:" + address);
+				notifyReconnecting(address, attempt, 0, true);
+				if (connect(address, policy, true, attempt, disconnectTime)) {
+					return true;
+				}
+			}
+			Log.w(TAG, "reconnect failed:" + address + ", attempts:" + (attempt - 1));
+			broadcastUpdate(address, ACTION_GATT_RECONNECT_FAILED);
+			return false;
+		}
+		long delay = policy.getDelay(attempt);
+		Reconnect reconnect = new Reconnect(address, policy, attempt, disconnectTime);
+		cancelReconnect(address);
+		mReconnects.put(address, reconnect);
+		mHandler.postDelayed(reconnect, delay);
+		Log.d(TAG, "reconnect " + address + " in " + delay + "ms, attempt:" + attempt);
+		notifyReconnecting(address, attempt, delay, false);
+		return true;
+	}
+
+	/**
+	 * @return 有等待中的重连时返回true
+	 */
+	private boolean cancelReconnect(String address) {
+		Reconnect reconnect = mReconnects.remove(address);
+		if (reconnect == null) {
+			return false;
+		}
+		mHandler.removeCallbacks(reconnect);
+		return true;
+	}
+
+	private void notifyReconnecting(String address, int attempt, long delay, boolean autoConnect) {
+		OnGattEventListener listener = mGattEventListener;
+		if (listener != null) {
+			listener.onReconnecting(address, attempt, delay, autoConnect);
+			return;
+		}
+		final Intent intent = new Intent(ACTION_GATT_RECONNECTING);
+		intent.putExtra(EXTRA_ADDRESS, address);
+		intent.putExtra(EXTRA_ATTEMPT, attempt);
+		intent.putExtra(EXTRA_DELAY, delay);
+		intent.putExtra(EXTRA_AUTO_CONNECT, autoConnect);
+		sendBroadcast(intent);
+	}
+
+	/**
+	 * 转换连接状态并通知
+	 *
+	 * @return 当前状态不允许该转换时返回false
+	 */
+	private boolean setState(DoGattConnection connection, int state) {
+		int from = connection.transition(state, SystemClock.elapsedRealtime());
+		if (from < 0) {
+			Log.d(TAG, "ignore state " + DoGattConnection.getStateName(state) + ":" + connection.getAddress() + ", current:" + DoGattConnection.getStateName(connection.getState()));
+			return false;
+		}
+		String address = connection.getAddress();
+		long time = System.currentTimeMillis();
+		long duration = connection.getStateDuration();
+		Log.d(TAG, "state " + DoGattConnection.getStateName(from) + " -> " + DoGattConnection.getStateName(state) + ":" + address + ", duration:" + duration);
+		OnGattEventListener listener = mGattEventListener;
+		if (listener != null) {
+			listener.onStateChange(address, from, state, time, duration);
+			return true;
+		}
+		final Intent intent = new Intent(ACTION_GATT_STATE_CHANGED);
+		intent.putExtra(EXTRA_ADDRESS, address);
+		intent.putExtra(EXTRA_STATE_FROM, from);
+		intent.putExtra(EXTRA_STATE_TO, state);
+		intent.putExtra(EXTRA_TIME, time);
+		intent.putExtra(EXTRA_DURATION, duration);
 		sendBroadcast(intent);
+		return true;
 	}
 
-	private void broadcastUpdate(final String action, final BluetoothGattCharacteristic characteristic) {
+	/**
+	 * 设置GATT结构快照的保存目录，连接时读取设备上次的快照，服务发现和订阅变化后更新
+	 */
+	public void setLayoutCacheDir(String path) {
+		mLayoutCacheDir = path == null ? null : new File(path);
+	}
+
+	private void saveLayout(DoGattConnection connection) {
+		File dir = mLayoutCacheDir;
+		DoGattLayout layout = connection.getLayout();
+		if (dir != null && layout != null) {
+			layout.save(dir, connection.getAddress());
+		}
+	}
+
+	/**
+	 * 查找连接
+	 *
+	 * @param address
+	 *            为空时，如果只有一个连接则返回该连接
+	 * @return 没有对应的连接时返回null
+	 */
+	public DoGattConnection getConnection(String address) {
+		if (address == null || address.length() == 0) {
+			if (mConnections.size() == 1) {
+				Iterator<DoGattConnection> iterator = mConnections.values().iterator();
+				return iterator.hasNext() ? iterator.next() : null;
+			}
+			return null;
+		}
+		return mConnections.get(address);
+	}
+
+	/**
+	 * 连接协商得到的MTU
+	 */
+	public int getMtu(String address) {
+		DoGattConnection connection = getConnection(address);
+		return connection == null ? DoGattConnection.DEFAULT_MTU : connection.getMtu();
+	}
+
+	/**
+	 * 连接单次写入的最大有效载荷
+	 */
+	public int getMaxWriteLength(String address) {
+		DoGattConnection connection = getConnection(address);
+		return connection == null ? DoGattConnection.DEFAULT_MTU - 3 : connection.getMaxWriteLength();
+	}
+
+	/**
+	 * 进程内直接接收GATT事件，设置后不再通过sendBroadcast发送，省去Intent序列化和主线程切换；
+	 * 回调在DoBluetoothWorker的工作线程上执行
+	 */
+	public interface OnGattEventListener {
+		/**
+		 * @param action
+		 *            ACTION_GATT_CONNECTED、ACTION_GATT_DISCONNECTED、ACTION_GATT_SERVICES_DISCOVERED或ACTION_GATT_RECONNECT_FAILED
+		 */
+		void onGattEvent(String address, String action);
+
+		/**
+		 * 即将自动重连
+		 *
+		 * @param attempt
+		 *            第几次尝试，从1开始
+		 * @param delay
+		 *            距离本次尝试的等待时间，单位毫秒
+		 * @param autoConnect
+		 *            为true时已交给系统在后台等待设备出现
+		 */
+		void onReconnecting(String address, int attempt, long delay, boolean autoConnect);
+
+		/**
+		 * 连接状态转换
+		 *
+		 * @param from
+		 *            DoGattConnection.STATE_*
+		 * @param to
+		 *            DoGattConnection.STATE_*
+		 * @param time
+		 *            转换的时间，System.currentTimeMillis()
+		 * @param duration
+		 *            在from状态停留的时间，单位毫秒
+		 */
+		void onStateChange(String address, int from, int to, long time, long duration);
+
+		/**
+		 * 读取或通知得到的特征值
+		 */
+		void onDataAvailable(String address, BluetoothGattCharacteristic characteristic, byte[] data);
+
+		/**
+		 * 根据快照自动恢复了一个通知订阅，在恢复的通知到达之前调用
+		 *
+		 * @param encoding
+		 *            订阅时指定的编码方式，旧版本的快照为DoValueEncoding.UNKNOWN
+		 */
+		void onSubscriptionRestored(String address, String sUUID, String cUUID, int encoding);
+	}
+
+	private volatile OnGattEventListener mGattEventListener;
+
+	public void setOnGattEventListener(OnGattEventListener listener) {
+		mGattEventListener = listener;
+	}
+
+	private void broadcastUpdate(final String address, final String action) {
+		OnGattEventListener listener = mGattEventListener;
+		if (listener != null) {
+			listener.onGattEvent(address, action);
+			return;
+		}
 		final Intent intent = new Intent(action);
-		byte[] data = characteristic.getValue();
-		if (data != null && data.length > 0) {
-			String value = new String(data, 0, data.length);
-			Log.d(TAG, "data.length=" + data.length + "----" + value);
-			intent.putExtra(EXTRA_DATA, value);
-			intent.putExtra(CHARACTERISTIC_UUID, characteristic.getUuid().toString());
+		intent.putExtra(EXTRA_ADDRESS, address);
+		sendBroadcast(intent);
+	}
+
+	private void broadcastUpdate(final String address, final String action, final BluetoothGattCharacteristic characteristic, byte[] data) {
+		OnGattEventListener listener = mGattEventListener;
+		if (listener != null) {
+			listener.onDataAvailable(address, characteristic, data);
+			return;
 		}
+		final Intent intent = new Intent(action);
+		intent.putExtra(EXTRA_ADDRESS, address);
+		// 原始字节，由接收方按需要的编码转换
+		Log.d(TAG, "data.length=" + data.length);
+		intent.putExtra(EXTRA_DATA, data);
+		intent.putExtra(CHARACTERISTIC_UUID, characteristic.getUuid().toString());
 		sendBroadcast(intent);
 	}
 
@@ -186,6 +890,14 @@ public class DoBluetoothLeService extends Service {
 	 * @return Return true if the initialization is successful.
 	 */
 	public boolean initialize() {
+		if (!isOnWorker()) {
+			return callOnWorker(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return initialize();
+				}
+			});
+		}
 		// For API level 18 and above, get a reference to BluetoothAdapter
 		// through
 		// BluetoothManager.
@@ -218,21 +930,53 @@ public class DoBluetoothLeService extends Service {
 	 *         callback.
 	 */
 	public boolean connect(final String address) {
+		return connect(address, null);
+	}
+
+	/**
+	 * @param reconnectPolicy
+	 *            意外断开后的重连策略，为null时不自动重连；设备已经连接时为null表示保持原来的策略
+	 */
+	public boolean connect(final String address, final DoReconnectPolicy reconnectPolicy) {
+		if (!isOnWorker()) {
+			return callOnWorker(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return connect(address, reconnectPolicy);
+				}
+			});
+		}
+		if (address != null) {
+			cancelReconnect(address);
+		}
+		return connect(address, reconnectPolicy, false, 0, 0);
+	}
+
+	private boolean connect(final String address, DoReconnectPolicy reconnectPolicy, boolean autoConnect, int reconnectAttempts, long disconnectTime) {
 		if (mBluetoothAdapter == null || address == null) {
 			DoServiceContainer.getLogEngine().writeDebug("未初始化蓝牙组件,请执行open方法");
 			Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
 			return false;
 		}
+		// getRemoteDevice对格式不正确的地址(包括小写)会抛出异常
+		if (!BluetoothAdapter.checkBluetoothAddress(address)) {
+			Log.w(TAG, "invalid address:" + address);
+			return false;
+		}
 
-		// Previously connected device. Try to reconnect.
-		if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress) && mBluetoothGatt != null) {
-			Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-			if (mBluetoothGatt.connect()) {
-//                mConnectionState = STATE_CONNECTING;
-				return true;
-			} else {
+		// 正在连接或已经连接时不重复发起，正在断开时拒绝
+		DoGattConnection connection = mConnections.get(address);
+		if (connection != null && connection.getGatt() != null) {
+			if (connection.getState() == DoGattConnection.STATE_DISCONNECTING) {
+				Log.w(TAG, "connection is disconnecting:" + address);
 				return false;
 			}
+			Log.d(TAG, "Connection exists:" + address + ", state:" + DoGattConnection.getStateName(connection.getState()));
+			// 不带重连参数再次调用时沿用原来的策略，不关闭已开启的自动重连
+			if (reconnectPolicy != null) {
+				connection.setReconnectPolicy(reconnectPolicy);
+			}
+			return true;
 		}
 
 		final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
@@ -242,161 +986,177 @@ public class DoBluetoothLeService extends Service {
 		}
 		// We want to directly connect to the device, so we are setting the
 		// autoConnect parameter to false.
-		mBluetoothGatt = device.connectGatt(null, false, mGattCallback);
-		Log.d(TAG, "Trying to create a new connection.");
-		mBluetoothDeviceAddress = address;
-//        mConnectionState = STATE_CONNECTING;
+		// 重连次数用完后可以改用autoConnect，由系统在后台低功耗等待设备
+		connection = new DoGattConnection(address);
+		connection.setConnectStartTime(SystemClock.elapsedRealtime());
+		connection.setReconnectPolicy(reconnectPolicy);
+		connection.setReconnect(reconnectAttempts, disconnectTime);
+		File dir = mLayoutCacheDir;
+		if (dir != null) {
+			connection.setLayoutSnapshot(DoGattLayout.load(dir, address));
+		}
+		closeLeakedClients();
+		setState(connection, DoGattConnection.STATE_CONNECTING);
+		BluetoothGatt gatt = device.connectGatt(null, autoConnect, new GattCallback(connection));
+		if (gatt == null) {
+			Log.w(TAG, "connectGatt failed:" + address);
+			setState(connection, DoGattConnection.STATE_CLOSED);
+			return false;
+		}
+		connection.attach(gatt);
+		mGattClients.add(connection);
+		mConnections.put(address, connection);
+		// autoConnect由系统在后台一直等待，不设超时
+		if (!autoConnect) {
+			startWatchdog(connection, ACTION_GATT_CONNECT_TIMEOUT, mConnectTimeout);
+		}
+		Log.d(TAG, "Trying to create a new connection:" + address + ", connections:" + mConnections.size() + ", gatt clients:" + mGattClients.size());
 		return true;
 	}
 
 	public static String bytesToHexString(byte[] src) {
-		StringBuilder stringBuilder = new StringBuilder("");
-		if (src == null || src.length <= 0) {
-			return "";
-		}
-		for (int i = 0; i < src.length; i++) {
-			int v = src[i] & 0xFF;
-			String hv = Integer.toHexString(v);
-			if (hv.length() < 2) {
-				stringBuilder.append(0);
-			}
-			stringBuilder.append(hv);
-		}
-		return stringBuilder.toString();
+		return DoHexCodec.encode(src);
 	}
 
+	/**
+	 * 十六进制字符串转为字节数组，大小写均可
+	 *
+	 * @throws IllegalArgumentException
+	 *             长度为奇数或包含非十六进制字符
+	 */
 	public static byte[] hex2Byte(String paramString) {
-		char[] arrayOfChar = paramString.toCharArray();
-		byte[] arrayOfByte = new byte[paramString.length() / 2];
-		for (int i = 0;; i++) {
-			if (i >= arrayOfByte.length)
-				return arrayOfByte;
-			arrayOfByte[i] = ((byte) (0xFF & 16 * "0123456789ABCDEF".indexOf(arrayOfChar[(i * 2)]) + "0123456789ABCDEF".indexOf(arrayOfChar[(1 + i * 2)])));
-		}
+		return DoHexCodec.decode(paramString);
 	}
 
-	public int writeValue(PendingWrite pw, boolean isFrist, String sUUID, String cUUID) {
-		if (mBluetoothManager == null) {
-			Log.w(TAG, "Unable to initialize BluetoothManager");
-			return -1;
-		}
-		if ((this.mBluetoothAdapter == null) || (this.mBluetoothGatt == null)) {
-			Log.w(TAG, "BluetoothAdapter not initialized");
-			return 1;
+	/**
+	 * 写入数据，操作进入队列后立即返回0，写完最后一个分包后通过listener通知结果
+	 *
+	 * @param address
+	 *            连接的设备地址，为空时使用唯一的连接
+	 */
+	public int writeValue(final String address, final DoWriteChunkSource pw, final boolean isFrist, final String sUUID, final String cUUID, final boolean noResponse, final DoGattOperation.OnCompleteListener listener) {
+		if (!isOnWorker()) {
+			return callOnWorker(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return writeValue(address, pw, isFrist, sUUID, cUUID, noResponse, listener);
+				}
+			});
 		}
-		Object result = getGattCharacteristic(sUUID, cUUID);
-
+		DoGattConnection connection = getConnection(address);
+		Object result = getCharacteristicForOperation(connection, sUUID, cUUID);
 		if (!(result instanceof BluetoothGattCharacteristic)) {
 			return (Integer) result;
 		}
+		connection.getOperationQueue().enqueue(new DoGattOperation.Write((BluetoothGattCharacteristic) result, pw, isFrist, noResponse, listener));
+		return 0;
+	}
 
-		BluetoothGattCharacteristic characteristic = (BluetoothGattCharacteristic) result;
-		if (isFrist) {
-			mBluetoothGatt.setCharacteristicNotification(characteristic, true);
-		}
-		mPendingWrite = pw;
-		Object fristText = pw.getNextContent();
-		Log.d(TAG, "write buffer part:" + fristText);
-		if (fristText instanceof byte[]) {
-			characteristic.setValue((byte[]) fristText);
-		} else {
-			characteristic.setValue(fristText.toString());
+	public int readValue(final String address, final boolean isFrist, final String sUUID, final String cUUID, final DoGattOperation.OnCompleteListener listener) {
+		if (!isOnWorker()) {
+			return callOnWorker(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return readValue(address, isFrist, sUUID, cUUID, listener);
+				}
+			});
 		}
-		boolean isWriteOk = mBluetoothGatt.writeCharacteristic(characteristic);
-		Log.d(TAG, "writeCharacteristic " + isWriteOk);
-		if (isWriteOk) {
-			return 0;
+		DoGattConnection connection = getConnection(address);
+		Object result = getCharacteristicForOperation(connection, sUUID, cUUID);
+		if (!(result instanceof BluetoothGattCharacteristic)) {
+			return (Integer) result;
 		}
-		return -1;
+		connection.getOperationQueue().enqueue(new DoGattOperation.Read((BluetoothGattCharacteristic) result, listener));
+		return 0;
 	}
 
-	public int readValue(boolean isFrist, String sUUID, String cUUID) {
-		if (mBluetoothManager == null) {
-			Log.w(TAG, "Unable to initialize BluetoothManager");
-			return -1;
-		}
-		if ((this.mBluetoothAdapter == null) || (this.mBluetoothGatt == null)) {
-			Log.w(TAG, "BluetoothAdapter not initialized");
-			return 1;
+	/**
+	 * 开启通知，成功后记录到连接的GATT结构快照中，重连时自动恢复
+	 *
+	 * @param encoding
+	 *            特征值的编码方式DoValueEncoding.*，与订阅一起保存，恢复订阅时通过onSubscriptionRestored交还
+	 */
+	public int setListener(final String address, final boolean isFrist, final String sUUID, final String cUUID, final int encoding, final DoGattOperation.OnCompleteListener listener) {
+		if (!isOnWorker()) {
+			return callOnWorker(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return setListener(address, isFrist, sUUID, cUUID, encoding, listener);
+				}
+			});
 		}
-		Object result = getGattCharacteristic(sUUID, cUUID);
-
+		final DoGattConnection connection = getConnection(address);
+		Object result = getCharacteristicForOperation(connection, sUUID, cUUID);
 		if (!(result instanceof BluetoothGattCharacteristic)) {
 			return (Integer) result;
 		}
-
-		BluetoothGattCharacteristic characteristic = (BluetoothGattCharacteristic) result;
-		boolean isReadOk = mBluetoothGatt.readCharacteristic(characteristic);
-		Log.d(TAG, "readCharacteristic " + isReadOk);
-		if (isReadOk) {
-			return 0;
-		}
-		return -1;
+		final BluetoothGattCharacteristic characteristic = (BluetoothGattCharacteristic) result;
+		connection.getOperationQueue().enqueue(new DoGattOperation.EnableNotification(characteristic, new DoGattOperation.OnCompleteListener() {
+			@Override
+			public void onComplete(DoGattOperation operation, int result) {
+				DoGattLayout layout = connection.getLayout();
+				if (result == 0 && layout != null) {
+					layout.addSubscription(characteristic.getService().getUuid().toString(), characteristic.getUuid().toString(), encoding);
+					saveLayout(connection);
+				}
+				if (listener != null) {
+					listener.onComplete(operation, result);
+				}
+			}
+		}));
+		return 0;
 	}
 
-	String CLIENT_CHARACTERISTIC_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
-
-	public int setListener(boolean isFrist, String sUUID, String cUUID) {
+	private Object getCharacteristicForOperation(DoGattConnection connection, String sUUID, String cUUID) {
 		if (mBluetoothManager == null) {
 			Log.w(TAG, "Unable to initialize BluetoothManager");
 			return -1;
 		}
-		if ((this.mBluetoothAdapter == null) || (this.mBluetoothGatt == null)) {
-			Log.w(TAG, "BluetoothAdapter not initialized");
+		if ((this.mBluetoothAdapter == null) || connection == null) {
+			Log.w(TAG, "BluetoothAdapter not initialized or device not connected");
 			return 1;
 		}
-		Object result = getGattCharacteristic(sUUID, cUUID);
-
-		if (!(result instanceof BluetoothGattCharacteristic)) {
-			return (Integer) result;
-		}
-		try {
-			BluetoothGattCharacteristic characteristic = (BluetoothGattCharacteristic) result;
-			if (characteristic.getDescriptors().size() != 0) {
-				String CLIENT_CHARACTERISTIC_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
-				BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID.fromString(CLIENT_CHARACTERISTIC_CONFIG));
-				descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-				mBluetoothGatt.writeDescriptor(descriptor);
-			}
-			int properties = characteristic.getProperties();
-			if ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE) > 0) {
-				mBluetoothGatt.setCharacteristicNotification(characteristic, false);
-			}
-			if ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) > 0) {
-				mBluetoothGatt.setCharacteristicNotification(characteristic, false);
-			}
-			if ((properties & BluetoothGattCharacteristic.PROPERTY_READ) > 0) {
-				mBluetoothGatt.setCharacteristicNotification(characteristic, false);
-			}
-			if ((properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
-				mBluetoothGatt.setCharacteristicNotification(characteristic, true);
-			}
-			return 0;
-		} catch (Exception e) {
-			return -1;
+		// 连接、服务发现未完成或正在断开时拒绝读写，避免操作发到已失效的链路上
+		int state = connection.getState();
+		if (state != DoGattConnection.STATE_READY) {
+			Log.w(TAG, "connection not ready:" + connection.getAddress() + ", state:" + DoGattConnection.getStateName(state));
+			return 1;
 		}
+		return getGattCharacteristic(connection, sUUID, cUUID);
 	}
 
-	private Object getGattCharacteristic(String sUUID, String cUUID) {
-		if (mBluetoothGatt == null) {
+	// 从连接的特征缓存中查找，服务发现完成前缓存为空
+	private Object getGattCharacteristic(DoGattConnection connection, String sUUID, String cUUID) {
+		if (connection.getGatt() == null) {
 			Log.w(TAG, "gatt not ready to get character");
 			return 1;
 		}
-		BluetoothGattService mGattService = null;
-		BluetoothGattCharacteristic mGattCharacteristic = null;
+		long serviceMsb, serviceLsb, msb, lsb;
 		try {
-			mGattService = mBluetoothGatt.getService(UUID.fromString(sUUID));
-		} catch (Exception e) {
+			serviceMsb = DoCharacteristicCache.parseMostSignificantBits(sUUID);
+			serviceLsb = DoCharacteristicCache.parseLeastSignificantBits(sUUID);
+		} catch (IllegalArgumentException e) {
 			Log.w(TAG, "service not found");
 			return 2;
 		}
 		try {
-			mGattCharacteristic = mGattService.getCharacteristic(UUID.fromString(cUUID));
-		} catch (Exception e) {
+			msb = DoCharacteristicCache.parseMostSignificantBits(cUUID);
+			lsb = DoCharacteristicCache.parseLeastSignificantBits(cUUID);
+		} catch (IllegalArgumentException e) {
 			Log.w(TAG, "character not found");
 			return 3;
 		}
-		return mGattCharacteristic;
+		DoCharacteristicCache cache = connection.getCharacteristicCache();
+		BluetoothGattCharacteristic mGattCharacteristic = cache.get(serviceMsb, serviceLsb, msb, lsb);
+		if (mGattCharacteristic != null) {
+			return mGattCharacteristic;
+		}
+		if (!cache.hasService(serviceMsb, serviceLsb)) {
+			Log.w(TAG, "service not found");
+			return 2;
+		}
+		Log.w(TAG, "character not found");
+		return 3;
 	}
 
 	/**
@@ -404,90 +1164,121 @@ public class DoBluetoothLeService extends Service {
 	 * disconnection result is reported asynchronously through the
 	 * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
 	 * callback.
+	 *
+	 * @param address
+	 *            为空时使用唯一的连接
+	 * @return 没有对应的连接时返回false
 	 */
-	public void disconnect() {
-		if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-			Log.w(TAG, "BluetoothAdapter not initialized");
+	public boolean disconnect(final String address) {
+		if (!isOnWorker()) {
+			return callOnWorker(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return disconnect(address);
+				}
+			});
+		}
+		boolean isReconnecting = address != null && cancelReconnect(address);
+		DoGattConnection connection = getConnection(address);
+		BluetoothGatt gatt = connection == null ? null : connection.getGatt();
+		if (mBluetoothAdapter == null || gatt == null) {
+			if (!isReconnecting) {
+				Log.w(TAG, "BluetoothAdapter not initialized or device not connected");
+			}
+			return isReconnecting;
+		}
+		disconnect(connection, gatt);
+		return true;
+	}
+
+	private void disconnect(DoGattConnection connection, BluetoothGatt gatt) {
+		connection.setClosing();
+		int state = connection.getState();
+		if (!setState(connection, DoGattConnection.STATE_DISCONNECTING)) {
+			return;
+		}
+		gatt.disconnect();
+		// 连接建立前取消时系统不一定回调断开，直接释放
+		if (state == DoGattConnection.STATE_IDLE || state == DoGattConnection.STATE_CONNECTING) {
+			onConnectionLost(connection, ACTION_GATT_DISCONNECTED);
 			return;
 		}
-		mBluetoothGatt.disconnect();
+		// 替换连接、服务发现的超时任务，主动断开不再报告超时；断开回调迟迟不来时按已断开释放
+		startWatchdog(connection, ACTION_GATT_DISCONNECTED, DISCONNECT_TIMEOUT);
 	}
 
 	/**
-	 * After using a given BLE device, the app must call this method to ensure
-	 * resources are released properly.
+	 * 断开所有连接
 	 */
-	public void close() {
-		if (mBluetoothGatt != null) {
-			mBluetoothGatt.close();
-			mBluetoothGatt = null;
+	public void disconnect() {
+		if (!isOnWorker()) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					disconnect();
+				}
+			});
+			return;
 		}
-		if (mBluetoothAdapter != null) {
-			mBluetoothAdapter = null;
+		if (mBluetoothAdapter == null) {
+			Log.w(TAG, "BluetoothAdapter not initialized");
+			return;
 		}
-		if (mBluetoothManager != null) {
-			mBluetoothManager = null;
+		cancelReconnects();
+		for (DoGattConnection connection : mConnections.values()) {
+			BluetoothGatt gatt = connection.getGatt();
+			if (gatt != null) {
+				disconnect(connection, gatt);
+			}
 		}
 	}
 
-	public abstract class PendingWrite {
-		public abstract Object getNextContent();
+	private void cancelReconnects() {
+		for (String address : mReconnects.keySet()) {
+			cancelReconnect(address);
+		}
 	}
 
-	public class PendingWriteText extends PendingWrite {
-		public PendingWriteText(String info, int maxLen) {
-			text = info;
-			length = 0;
-			maxLength = maxLen;
+	/**
+	 * After using a given BLE device, the app must call this method to ensure
+	 * resources are released properly.
+	 */
+	public void close() {
+		if (!isOnWorker()) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					close();
+				}
+			});
+			return;
 		}
-
-		private String text;
-		private int length;
-		private int maxLength;
-
-		public String getNextContent() {
-			if (length >= text.length())
-				return null;
-			if ((length + maxLength) >= text.length()) {
-				String nextStr = text.substring(length, text.length());
-				length = text.length();
-				return nextStr;
-			} else {
-				String nextStr = text.substring(length, length + maxLength);
-				length += maxLength;
-				return nextStr;
+		cancelReconnects();
+		for (String address : mPipelines.keySet()) {
+			DoConnectPipeline pipeline = mPipelines.remove(address);
+			if (pipeline != null) {
+				pipeline.finish(-1);
 			}
 		}
-	}
-
-	public class PendingWriteBinary extends PendingWrite {
-		// info是十六进制表示的二进制数据
-		public PendingWriteBinary(String info, int maxLen) {
-			text = hex2Byte(info);
-			length = 0;
-			maxLength = maxLen;
+		// 进行中的批量连接以失败结束，之后的连接结果不再继续这些批次
+		for (DoConnectBatch batch : mConnectBatches) {
+			batch.cancel(-1);
 		}
-
-		private byte[] text;
-		private int length;
-		private int maxLength;
-
-		public byte[] getNextContent() {
-			if (length >= text.length)
-				return null;
-			if ((length + maxLength) >= text.length) {
-//				byte[] nextStr = text.substring(length, text.length);
-				byte[] nextStr = new byte[text.length - length];
-				System.arraycopy(text, length, nextStr, 0, nextStr.length);
-				length = text.length;
-				return nextStr;
-			} else {
-				byte[] nextStr = new byte[maxLength];
-//				byte[] nextStr = text.substring(length, length + maxLength);
-				System.arraycopy(text, length, nextStr, 0, nextStr.length);
-				length += maxLength;
-				return nextStr;
+		mConnectBatches.clear();
+		for (DoGattConnection connection : mConnections.values()) {
+			connection.setClosing();
+			stopWatchdog(connection);
+			if (setState(connection, DoGattConnection.STATE_CLOSED)) {
+				broadcastUpdate(connection.getAddress(), ACTION_GATT_DISCONNECTED);
 			}
 		}
+		mConnections.clear();
+		closeLeakedClients();
+		if (mBluetoothAdapter != null) {
+			mBluetoothAdapter = null;
+		}
+		if (mBluetoothManager != null) {
+			mBluetoothManager = null;
+		}
 	}
 }
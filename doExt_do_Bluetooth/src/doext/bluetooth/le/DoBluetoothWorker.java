@@ -0,0 +1,26 @@
+package doext.bluetooth.le;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/**
+ * 蓝牙模块的工作线程：GATT回调、扫描结果、数据解析和事件构造都在这里执行，
+ * 不占用主线程，也不会被界面绘制拖慢；进程内共用一个线程，第一次使用时创建，
+ * 所有任务按提交顺序依次执行
+ */
+public final class DoBluetoothWorker {
+
+	private static Handler sHandler;
+
+	private DoBluetoothWorker() {
+	}
+
+	public static synchronized Handler getHandler() {
+		if (sHandler == null) {
+			HandlerThread thread = new HandlerThread("do_Bluetooth");
+			thread.start();
+			sHandler = new Handler(thread.getLooper());
+		}
+		return sHandler;
+	}
+}
@@ -0,0 +1,191 @@
+package doext.bluetooth.le;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+/**
+ * 连接上已解析的服务和特征，服务发现完成后一次性填充，断开或服务变化时清空；
+ * 查找时把UUID字符串直接解析成两个long，在开放寻址表中按(服务UUID, 特征UUID)命中，
+ * 不创建UUID对象，也不再遍历getService/getCharacteristic
+ */
+public class DoCharacteristicCache {
+
+	private static final int INITIAL_CAPACITY = 32;
+
+	// 每个槽位依次保存服务UUID的高低位和特征UUID的高低位
+	private long[] keys = new long[INITIAL_CAPACITY * 4];
+	private BluetoothGattCharacteristic[] values = new BluetoothGattCharacteristic[INITIAL_CAPACITY];
+	private long[] services = new long[0];
+	private int size;
+
+	/**
+	 * 用服务发现的结果重新填充
+	 */
+	public synchronized void fill(BluetoothGatt gatt) {
+		clear();
+		List<BluetoothGattService> gattServices = gatt.getServices();
+		if (gattServices == null) {
+			return;
+		}
+		services = new long[gattServices.size() * 2];
+		for (int i = 0; i < gattServices.size(); i++) {
+			BluetoothGattService gattService = gattServices.get(i);
+			long serviceMsb = gattService.getUuid().getMostSignificantBits();
+			long serviceLsb = gattService.getUuid().getLeastSignificantBits();
+			services[i * 2] = serviceMsb;
+			services[i * 2 + 1] = serviceLsb;
+			List<BluetoothGattCharacteristic> characteristics = gattService.getCharacteristics();
+			if (characteristics == null) {
+				continue;
+			}
+			for (BluetoothGattCharacteristic characteristic : characteristics) {
+				long msb = characteristic.getUuid().getMostSignificantBits();
+				long lsb = characteristic.getUuid().getLeastSignificantBits();
+				// 同一服务下UUID重复的特征只保留第一个，与getCharacteristic一致
+				if (find(serviceMsb, serviceLsb, msb, lsb) < 0) {
+					put(serviceMsb, serviceLsb, msb, lsb, characteristic);
+				}
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		if (size > 0) {
+			Arrays.fill(values, null);
+		}
+		size = 0;
+		services = new long[0];
+	}
+
+	public synchronized boolean isEmpty() {
+		return services.length == 0;
+	}
+
+	/**
+	 * @return 未发现该服务时返回false
+	 */
+	public synchronized boolean hasService(long serviceMsb, long serviceLsb) {
+		for (int i = 0; i < services.length; i += 2) {
+			if (services[i] == serviceMsb && services[i + 1] == serviceLsb) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return 没有时返回null
+	 */
+	public synchronized BluetoothGattCharacteristic get(long serviceMsb, long serviceLsb, long msb, long lsb) {
+		int index = find(serviceMsb, serviceLsb, msb, lsb);
+		return index < 0 ? null : values[index];
+	}
+
+	private int find(long serviceMsb, long serviceLsb, long msb, long lsb) {
+		int mask = values.length - 1;
+		int index = hash(serviceMsb, serviceLsb, msb, lsb) & mask;
+		while (values[index] != null) {
+			int k = index * 4;
+			if (keys[k + 2] == msb && keys[k + 3] == lsb && keys[k] == serviceMsb && keys[k + 1] == serviceLsb) {
+				return index;
+			}
+			index = (index + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void put(long serviceMsb, long serviceLsb, long msb, long lsb, BluetoothGattCharacteristic characteristic) {
+		// 负载不超过一半
+		if ((size + 1) * 2 > values.length) {
+			rehash(values.length * 2);
+		}
+		int mask = values.length - 1;
+		int index = hash(serviceMsb, serviceLsb, msb, lsb) & mask;
+		while (values[index] != null) {
+			index = (index + 1) & mask;
+		}
+		int k = index * 4;
+		keys[k] = serviceMsb;
+		keys[k + 1] = serviceLsb;
+		keys[k + 2] = msb;
+		keys[k + 3] = lsb;
+		values[index] = characteristic;
+		size++;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		BluetoothGattCharacteristic[] oldValues = values;
+		keys = new long[capacity * 4];
+		values = new BluetoothGattCharacteristic[capacity];
+		size = 0;
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int k = i * 4;
+				put(oldKeys[k], oldKeys[k + 1], oldKeys[k + 2], oldKeys[k + 3], oldValues[i]);
+			}
+		}
+	}
+
+	private static int hash(long serviceMsb, long serviceLsb, long msb, long lsb) {
+		// 16位UUID只有高位的前32位不同，低位都是蓝牙基础UUID，需要把高位充分混合
+		long h = msb * 0x9E3779B97F4A7C15L + lsb;
+		h ^= serviceMsb * 0xC2B2AE3D27D4EB4FL + serviceLsb;
+		h ^= h >>> 29;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * 解析UUID字符串的高64位，标准的8-4-4-4-12格式直接按十六进制解析，大小写均可，其他格式交给UUID.fromString
+	 *
+	 * @throws IllegalArgumentException
+	 *             格式不正确
+	 */
+	public static long parseMostSignificantBits(String uuid) {
+		if (!isCanonical(uuid)) {
+			return fromString(uuid).getMostSignificantBits();
+		}
+		return (parseHex(uuid, 0, 8) << 32) | (parseHex(uuid, 9, 13) << 16) | parseHex(uuid, 14, 18);
+	}
+
+	/**
+	 * 解析UUID字符串的低64位
+	 *
+	 * @throws IllegalArgumentException
+	 *             格式不正确
+	 */
+	public static long parseLeastSignificantBits(String uuid) {
+		if (!isCanonical(uuid)) {
+			return fromString(uuid).getLeastSignificantBits();
+		}
+		return (parseHex(uuid, 19, 23) << 48) | parseHex(uuid, 24, 36);
+	}
+
+	private static boolean isCanonical(String uuid) {
+		return uuid != null && uuid.length() == 36 && uuid.charAt(8) == '-' && uuid.charAt(13) == '-' && uuid.charAt(18) == '-' && uuid.charAt(23) == '-';
+	}
+
+	private static UUID fromString(String uuid) {
+		if (uuid == null) {
+			throw new IllegalArgumentException("uuid is null");
+		}
+		return UUID.fromString(uuid);
+	}
+
+	private static long parseHex(String s, int start, int end) {
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = Character.digit(s.charAt(i), 16);
+			if (digit < 0) {
+				throw new IllegalArgumentException("invalid uuid:" + s);
+			}
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+}
@@ -0,0 +1,157 @@
+package doext.bluetooth.le;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.os.SystemClock;
+
+/**
+ * 批量连接：同时最多concurrency个设备处于连接、服务发现阶段，一个设备就绪或失败后再开始下一个，
+ * 每个设备的结果和全部结束后的汇总通过OnConnectBatchListener通知
+ */
+public class DoConnectBatch {
+
+	public interface OnConnectBatchListener {
+		/**
+		 * @param result
+		 *            0成功，-1连接失败，DoBluetoothLeService.ERROR_*
+		 * @param elapsed
+		 *            从开始连接该设备到得到结果的耗时，单位毫秒
+		 */
+		void onDeviceResult(String address, int result, long elapsed);
+
+		/**
+		 * @param elapsed
+		 *            整批的耗时，单位毫秒
+		 */
+		void onFinish(int succeeded, int failed, long elapsed);
+	}
+
+	// 已发起连接，之后通过onResult通知结果
+	static final int PENDING = Integer.MAX_VALUE;
+
+	/**
+	 * 开始连接一个设备
+	 */
+	interface Connector {
+		/**
+		 * @return PENDING，或者立即得到的结果
+		 */
+		int connect(String address);
+	}
+
+	private final LinkedList<String> pending;
+	private final int concurrency;
+	private final Connector connector;
+	private final OnConnectBatchListener listener;
+	private final long startTime = SystemClock.elapsedRealtime();
+	// 正在连接的设备及其开始连接的时间
+	private final List<String> running = new LinkedList<String>();
+	private final List<Long> runningStartTimes = new LinkedList<Long>();
+	private int succeeded;
+	private int failed;
+	private boolean isFinished;
+
+	DoConnectBatch(List<String> addresses, int concurrency, Connector connector, OnConnectBatchListener listener) {
+		this.pending = new LinkedList<String>(addresses);
+		this.concurrency = Math.max(concurrency, 1);
+		this.connector = connector;
+		this.listener = listener;
+	}
+
+	/**
+	 * 补足正在连接的设备数，全部设备都有结果后通知汇总
+	 */
+	void next() {
+		while (true) {
+			String address;
+			synchronized (this) {
+				if (pending.isEmpty()) {
+					if (!running.isEmpty() || isFinished) {
+						return;
+					}
+					isFinished = true;
+					break;
+				}
+				if (running.size() >= concurrency) {
+					return;
+				}
+				address = pending.poll();
+				running.add(address);
+				runningStartTimes.add(SystemClock.elapsedRealtime());
+			}
+			int result = connector.connect(address);
+			if (result != PENDING) {
+				finish(address, result);
+			}
+		}
+		listener.onFinish(succeeded, failed, SystemClock.elapsedRealtime() - startTime);
+	}
+
+	/**
+	 * 设备得到结果后开始下一个设备
+	 *
+	 * @return 不是本批次正在连接的设备时返回false
+	 */
+	boolean onResult(String address, int result) {
+		if (!finish(address, result)) {
+			return false;
+		}
+		next();
+		return true;
+	}
+
+	/**
+	 * 服务关闭时结束本批次，正在连接和尚未开始的设备都以result结束
+	 */
+	void cancel(int result) {
+		List<String> runningAddresses;
+		List<String> waitingAddresses;
+		synchronized (this) {
+			if (isFinished) {
+				return;
+			}
+			runningAddresses = new ArrayList<String>(running);
+			waitingAddresses = new ArrayList<String>(pending);
+			pending.clear();
+		}
+		for (String address : runningAddresses) {
+			finish(address, result);
+		}
+		for (String address : waitingAddresses) {
+			synchronized (this) {
+				if (result == 0) {
+					succeeded++;
+				} else {
+					failed++;
+				}
+			}
+			listener.onDeviceResult(address, result, 0);
+		}
+		next();
+	}
+
+	synchronized boolean isFinished() {
+		return isFinished;
+	}
+
+	private boolean finish(String address, int result) {
+		long elapsed;
+		synchronized (this) {
+			int index = running.indexOf(address);
+			if (index < 0) {
+				return false;
+			}
+			running.remove(index);
+			elapsed = SystemClock.elapsedRealtime() - runningStartTimes.remove(index);
+			if (result == 0) {
+				succeeded++;
+			} else {
+				failed++;
+			}
+		}
+		listener.onDeviceResult(address, result, elapsed);
+		return true;
+	}
+}
@@ -0,0 +1,189 @@
+package doext.bluetooth.le;
+
+import java.util.Arrays;
+import java.util.List;
+
+import android.os.SystemClock;
+
+/**
+ * 一次完成连接、服务发现、MTU协商和开启通知，并记录各阶段的耗时；
+ * 服务在连接就绪后依次开启通知，全部有结果后通过OnCompleteListener通知
+ */
+public class DoConnectPipeline {
+
+	public interface OnCompleteListener {
+		void onComplete(DoConnectPipeline pipeline);
+	}
+
+	private final String address;
+	private final int mtu;
+	// 每项为{服务UUID, 特征UUID}
+	private final List<String[]> subscriptions;
+	// 与subscriptions一一对应，DoValueEncoding.*
+	private final int[] encodings;
+	private final OnCompleteListener listener;
+	private final long startTime = SystemClock.elapsedRealtime();
+	private final int[] subscriptionResults;
+	private int pendingSubscriptions;
+	private boolean isFinished;
+	private int result = -1;
+	private int negotiatedMtu = DoGattConnection.DEFAULT_MTU;
+	private int reconnectAttempts;
+	private long readyTime;
+	private long connectTime;
+	private long discoveryTime;
+	private long mtuTime;
+	private long subscribeTime;
+	private long totalTime;
+
+	/**
+	 * @param mtu
+	 *            服务发现后申请的MTU，不大于23时不协商
+	 * @param encodings
+	 *            每个特征值的编码方式DoValueEncoding.*，随订阅记录到GATT结构快照中
+	 */
+	public DoConnectPipeline(String address, int mtu, List<String[]> subscriptions, int[] encodings, OnCompleteListener listener) {
+		this.address = address;
+		this.mtu = mtu;
+		this.subscriptions = subscriptions;
+		this.encodings = encodings;
+		this.listener = listener;
+		this.subscriptionResults = new int[subscriptions.size()];
+		Arrays.fill(subscriptionResults, -1);
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	int getMtu() {
+		return mtu;
+	}
+
+	List<String[]> getSubscriptions() {
+		return subscriptions;
+	}
+
+	int getEncoding(int index) {
+		return encodings[index];
+	}
+
+	/**
+	 * 连接就绪，记录各阶段耗时后开始开启通知
+	 *
+	 * @param isExisting
+	 *            设备在开始前已经就绪，连接、服务发现和MTU协商的耗时都为0
+	 */
+	synchronized void onReady(DoGattConnection connection, boolean isExisting) {
+		readyTime = SystemClock.elapsedRealtime();
+		negotiatedMtu = connection.getMtu();
+		if (!isExisting) {
+			reconnectAttempts = connection.getReconnectAttempts();
+			connectTime = connection.getConnectedElapsed();
+			discoveryTime = connection.getDiscoveryElapsed();
+			mtuTime = connection.getMtuElapsed();
+		}
+		pendingSubscriptions = subscriptions.size();
+	}
+
+	/**
+	 * 一个特征开启通知的结果，全部有结果后结束
+	 */
+	void onSubscribed(int index, int result) {
+		synchronized (this) {
+			if (isFinished) {
+				return;
+			}
+			subscriptionResults[index] = result;
+			if (--pendingSubscriptions > 0) {
+				return;
+			}
+		}
+		finish(0);
+	}
+
+	/**
+	 * @param result
+	 *            0表示连接就绪且所有特征都有了结果，其他为连接失败的错误码
+	 */
+	void finish(int result) {
+		synchronized (this) {
+			if (isFinished) {
+				return;
+			}
+			isFinished = true;
+			this.result = result;
+			long now = SystemClock.elapsedRealtime();
+			totalTime = now - startTime;
+			if (result == 0) {
+				subscribeTime = now - readyTime;
+			}
+		}
+		listener.onComplete(this);
+	}
+
+	/**
+	 * @return 0成功，-1连接失败或开启通知时连接断开，DoBluetoothLeService.ERROR_*；连接正常时开启通知失败不影响，见getSubscriptionResult
+	 */
+	public synchronized int getResult() {
+		return result;
+	}
+
+	/**
+	 * @return 第index个特征开启通知的结果，0成功，1未连接，2未找到服务，3未找到特征，-1失败或未执行
+	 */
+	public synchronized int getSubscriptionResult(int index) {
+		return subscriptionResults[index];
+	}
+
+	public String[] getSubscription(int index) {
+		return subscriptions.get(index);
+	}
+
+	public int getSubscriptionCount() {
+		return subscriptions.size();
+	}
+
+	public synchronized int getNegotiatedMtu() {
+		return negotiatedMtu;
+	}
+
+	public synchronized int getReconnectAttempts() {
+		return reconnectAttempts;
+	}
+
+	/**
+	 * 以下耗时单位均为毫秒：发起连接到连接建立
+	 */
+	public synchronized long getConnectTime() {
+		return connectTime;
+	}
+
+	/**
+	 * 连接建立到服务发现完成
+	 */
+	public synchronized long getDiscoveryTime() {
+		return discoveryTime;
+	}
+
+	/**
+	 * 服务发现完成到MTU协商完成
+	 */
+	public synchronized long getMtuTime() {
+		return mtuTime;
+	}
+
+	/**
+	 * 连接就绪到所有特征开启通知
+	 */
+	public synchronized long getSubscribeTime() {
+		return subscribeTime;
+	}
+
+	/**
+	 * 从开始到结束，包括重连等待的时间
+	 */
+	public synchronized long getTotalTime() {
+		return totalTime;
+	}
+}
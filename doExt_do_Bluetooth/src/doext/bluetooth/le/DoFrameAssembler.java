@@ -0,0 +1,188 @@
+package doext.bluetooth.le;
+
+import android.util.Log;
+
+/**
+ * 把分片到达的通知数据拼接成完整的数据帧，数据先累积在可扩容的环形缓冲区中，
+ * 凑满一帧后才交给OnFrameListener；支持三种分帧方式：
+ * <ul>
+ * <li>MODE_LENGTH：固定长度，每frameLength个字节为一帧</li>
+ * <li>MODE_FLAG：以分隔符结尾，帧内容不包含分隔符</li>
+ * <li>MODE_HEADER：帧前有headerSize(1、2或4)个字节的大端长度头，表示其后的内容长度，帧内容不包含长度头</li>
+ * </ul>
+ */
+public class DoFrameAssembler {
+	private final static String TAG = DoFrameAssembler.class.getSimpleName();
+
+	public static final int MODE_LENGTH = 0;
+	public static final int MODE_FLAG = 1;
+	public static final int MODE_HEADER = 2;
+
+	private static final int INITIAL_CAPACITY = 256;
+	// 缓冲区上限，迟迟凑不成一帧（例如分隔符丢失）时丢弃已缓存的数据
+	private static final int MAX_CAPACITY = 64 * 1024;
+
+	public interface OnFrameListener {
+		void onFrame(byte[] frame);
+	}
+
+	private final int mode;
+	private final int frameLength;
+	private final byte[] flag;
+	private final int headerSize;
+
+	private byte[] buffer = new byte[INITIAL_CAPACITY];
+	private int head;
+	private int size;
+	// MODE_FLAG下已经查找过分隔符的字节数，新数据到达后从这里继续查找
+	private int scanned;
+
+	private DoFrameAssembler(int mode, int frameLength, byte[] flag, int headerSize) {
+		this.mode = mode;
+		this.frameLength = frameLength;
+		this.flag = flag;
+		this.headerSize = headerSize;
+	}
+
+	public static DoFrameAssembler byLength(int frameLength) {
+		if (frameLength <= 0 || frameLength > MAX_CAPACITY) {
+			throw new IllegalArgumentException("invalid frame length:" + frameLength);
+		}
+		return new DoFrameAssembler(MODE_LENGTH, frameLength, null, 0);
+	}
+
+	public static DoFrameAssembler byFlag(byte[] flag) {
+		if (flag == null || flag.length == 0) {
+			throw new IllegalArgumentException("flag is empty");
+		}
+		return new DoFrameAssembler(MODE_FLAG, 0, flag, 0);
+	}
+
+	public static DoFrameAssembler byHeader(int headerSize) {
+		if (headerSize != 1 && headerSize != 2 && headerSize != 4) {
+			throw new IllegalArgumentException("header size must be 1, 2 or 4:" + headerSize);
+		}
+		return new DoFrameAssembler(MODE_HEADER, 0, null, headerSize);
+	}
+
+	/**
+	 * 分帧方式相同、缓冲区为空的新实例，用于同一设置下各个设备分别拼帧
+	 */
+	public DoFrameAssembler copy() {
+		return new DoFrameAssembler(mode, frameLength, flag, headerSize);
+	}
+
+	public int getMode() {
+		return mode;
+	}
+
+	/**
+	 * 追加收到的数据，每凑满一帧回调一次listener
+	 */
+	public synchronized void append(byte[] data, OnFrameListener listener) {
+		if (size + data.length > MAX_CAPACITY) {
+			Log.w(TAG, "frame buffer overflow, drop " + size + " bytes");
+			reset();
+			if (data.length > MAX_CAPACITY) {
+				return;
+			}
+		}
+		ensureCapacity(size + data.length);
+		int tail = (head + size) % buffer.length;
+		int first = Math.min(data.length, buffer.length - tail);
+		System.arraycopy(data, 0, buffer, tail, first);
+		System.arraycopy(data, first, buffer, 0, data.length - first);
+		size += data.length;
+
+		byte[] frame;
+		while ((frame = nextFrame()) != null) {
+			listener.onFrame(frame);
+		}
+	}
+
+	public synchronized void reset() {
+		head = 0;
+		size = 0;
+		scanned = 0;
+	}
+
+	private byte[] nextFrame() {
+		switch (mode) {
+		case MODE_LENGTH:
+			return size >= frameLength ? take(frameLength, 0) : null;
+		case MODE_FLAG:
+			int index = indexOfFlag();
+			return index < 0 ? null : take(index, flag.length);
+		default:
+			if (size < headerSize) {
+				return null;
+			}
+			int length = 0;
+			for (int i = 0; i < headerSize; i++) {
+				length = (length << 8) | (byteAt(i) & 0xFF);
+			}
+			if (length < 0 || length > MAX_CAPACITY - headerSize) {
+				Log.w(TAG, "invalid frame header length:" + length);
+				reset();
+				return null;
+			}
+			if (size < headerSize + length) {
+				return null;
+			}
+			skip(headerSize);
+			return take(length, 0);
+		}
+	}
+
+	private int indexOfFlag() {
+		int last = size - flag.length;
+		for (int i = Math.max(scanned, 0); i <= last; i++) {
+			int j = 0;
+			while (j < flag.length && byteAt(i + j) == flag[j]) {
+				j++;
+			}
+			if (j == flag.length) {
+				return i;
+			}
+		}
+		// 保留可能是分隔符前缀的部分，下次从这里继续
+		scanned = Math.max(last + 1, 0);
+		return -1;
+	}
+
+	// 取出length个字节作为一帧，并丢弃其后的trailing个字节
+	private byte[] take(int length, int trailing) {
+		byte[] frame = new byte[length];
+		int first = Math.min(length, buffer.length - head);
+		System.arraycopy(buffer, head, frame, 0, first);
+		System.arraycopy(buffer, 0, frame, first, length - first);
+		skip(length + trailing);
+		return frame;
+	}
+
+	private void skip(int length) {
+		head = (head + length) % buffer.length;
+		size -= length;
+		scanned = 0;
+	}
+
+	private byte byteAt(int index) {
+		return buffer[(head + index) % buffer.length];
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= buffer.length) {
+			return;
+		}
+		int newLength = buffer.length;
+		while (newLength < capacity) {
+			newLength *= 2;
+		}
+		byte[] newBuffer = new byte[newLength];
+		int first = Math.min(size, buffer.length - head);
+		System.arraycopy(buffer, head, newBuffer, 0, first);
+		System.arraycopy(buffer, 0, newBuffer, first, size - first);
+		buffer = newBuffer;
+		head = 0;
+	}
+}
@@ -0,0 +1,313 @@
+package doext.bluetooth.le;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.SystemClock;
+
+/**
+ * 与一个外设的GATT连接，每个连接有独立的BluetoothGatt、操作队列、特征缓存、MTU和连接状态
+ */
+public class DoGattConnection {
+	// BLE 4.0默认的ATT MTU，有效载荷为MTU-3
+	public static final int DEFAULT_MTU = 23;
+	private static final int ATT_HEADER_SIZE = 3;
+
+	// 连接状态：IDLE -> CONNECTING -> DISCOVERING -> READY，主动断开时经过DISCONNECTING，最终为CLOSED；
+	// 服务变化时READY回到DISCOVERING，重新发现后再回到READY
+	public static final int STATE_IDLE = 0;
+	public static final int STATE_CONNECTING = 1;
+	public static final int STATE_DISCOVERING = 2;
+	public static final int STATE_READY = 3;
+	public static final int STATE_DISCONNECTING = 4;
+	public static final int STATE_CLOSED = 5;
+	private static final String[] STATE_NAMES = { "idle", "connecting", "discovering", "ready", "disconnecting", "closed" };
+	// 每个状态允许转换到的状态，按位表示
+	private static final int[] TRANSITIONS = {
+			// IDLE
+			1 << STATE_CONNECTING | 1 << STATE_DISCONNECTING | 1 << STATE_CLOSED,
+			// CONNECTING
+			1 << STATE_DISCOVERING | 1 << STATE_DISCONNECTING | 1 << STATE_CLOSED,
+			// DISCOVERING
+			1 << STATE_READY | 1 << STATE_DISCONNECTING | 1 << STATE_CLOSED,
+			// READY
+			1 << STATE_DISCOVERING | 1 << STATE_DISCONNECTING | 1 << STATE_CLOSED,
+			// DISCONNECTING
+			1 << STATE_CLOSED,
+			// CLOSED
+			0 };
+
+	private final String address;
+	private BluetoothGatt gatt;
+	private DoGattOperationQueue operationQueue;
+	private final DoCharacteristicCache characteristicCache = new DoCharacteristicCache();
+	private int state = STATE_IDLE;
+	// 进入当前状态的时间，以及上一个状态持续的时间
+	private long stateTime = SystemClock.elapsedRealtime();
+	private long stateDuration;
+	private volatile int mtu = DEFAULT_MTU;
+	// 上次保存的GATT结构快照，以及本次连接发现的结构
+	private DoGattLayout layoutSnapshot;
+	private volatile DoGattLayout layout;
+	private volatile boolean isLayoutMatched;
+	private volatile int restoredSubscriptions;
+	private long connectStartTime;
+	private volatile long connectElapsed;
+	// 连接建立、服务发现完成和就绪的时间
+	private volatile long connectedTime;
+	private volatile long discoveredTime;
+	private volatile long readyTime;
+	// 自动重连：为null时断开后不重连；reconnectAttempts为本连接是第几次重连尝试，0表示不是重连
+	private volatile DoReconnectPolicy reconnectPolicy;
+	private int reconnectAttempts;
+	private long disconnectTime;
+	private volatile long reconnectElapsed;
+	private volatile boolean wasReady;
+	private volatile boolean isClosing;
+	// 连接或服务发现的超时任务
+	private Runnable watchdog;
+
+	DoGattConnection(String address) {
+		this.address = address;
+	}
+
+	synchronized void attach(BluetoothGatt gatt) {
+		this.gatt = gatt;
+		this.operationQueue = new DoGattOperationQueue(gatt);
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	synchronized BluetoothGatt getGatt() {
+		return gatt;
+	}
+
+	synchronized DoGattOperationQueue getOperationQueue() {
+		return operationQueue;
+	}
+
+	DoCharacteristicCache getCharacteristicCache() {
+		return characteristicCache;
+	}
+
+	/**
+	 * @return STATE_*
+	 */
+	public synchronized int getState() {
+		return state;
+	}
+
+	public static String getStateName(int state) {
+		return state >= 0 && state < STATE_NAMES.length ? STATE_NAMES[state] : "unknown";
+	}
+
+	/**
+	 * 转换到新的状态
+	 *
+	 * @return 原来的状态，不允许的转换返回-1且状态不变
+	 */
+	synchronized int transition(int to, long now) {
+		int from = state;
+		if ((TRANSITIONS[from] & (1 << to)) == 0) {
+			return -1;
+		}
+		state = to;
+		stateDuration = now - stateTime;
+		stateTime = now;
+		return from;
+	}
+
+	/**
+	 * 最近一次转换前的状态持续的时间，单位毫秒
+	 */
+	synchronized long getStateDuration() {
+		return stateDuration;
+	}
+
+	/**
+	 * 协商得到的MTU
+	 */
+	public int getMtu() {
+		return mtu;
+	}
+
+	void setMtu(int mtu) {
+		this.mtu = mtu;
+	}
+
+	void setLayoutSnapshot(DoGattLayout layoutSnapshot) {
+		this.layoutSnapshot = layoutSnapshot;
+	}
+
+	/**
+	 * 服务发现完成后调用，与快照一致时沿用快照中的订阅
+	 */
+	void setLayout(DoGattLayout layout) {
+		isLayoutMatched = layout.matches(layoutSnapshot);
+		if (isLayoutMatched) {
+			layout.copySubscriptions(layoutSnapshot);
+		}
+		layoutSnapshot = null;
+		this.layout = layout;
+	}
+
+	DoGattLayout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * 本次发现的GATT结构是否与上次保存的快照一致
+	 */
+	public boolean isLayoutMatched() {
+		return isLayoutMatched;
+	}
+
+	/**
+	 * 根据快照自动恢复的通知订阅数
+	 */
+	public int getRestoredSubscriptions() {
+		return restoredSubscriptions;
+	}
+
+	void setRestoredSubscriptions(int restoredSubscriptions) {
+		this.restoredSubscriptions = restoredSubscriptions;
+	}
+
+	void setConnectStartTime(long connectStartTime) {
+		this.connectStartTime = connectStartTime;
+	}
+
+	/**
+	 * 从发起连接到可以读写(服务发现、MTU协商完成)的耗时，单位毫秒
+	 */
+	public long getConnectElapsed() {
+		return connectElapsed;
+	}
+
+	void setConnectedTime(long connectedTime) {
+		this.connectedTime = connectedTime;
+	}
+
+	void setDiscoveredTime(long discoveredTime) {
+		this.discoveredTime = discoveredTime;
+	}
+
+	/**
+	 * 从发起连接到连接建立的耗时，单位毫秒
+	 */
+	public long getConnectedElapsed() {
+		return connectedTime - connectStartTime;
+	}
+
+	/**
+	 * 从连接建立到服务发现完成的耗时，单位毫秒
+	 */
+	public long getDiscoveryElapsed() {
+		return discoveredTime - connectedTime;
+	}
+
+	/**
+	 * 从服务发现完成到MTU协商完成的耗时，单位毫秒，不协商时接近0
+	 */
+	public long getMtuElapsed() {
+		return readyTime - discoveredTime;
+	}
+
+	DoReconnectPolicy getReconnectPolicy() {
+		return reconnectPolicy;
+	}
+
+	void setReconnectPolicy(DoReconnectPolicy reconnectPolicy) {
+		this.reconnectPolicy = reconnectPolicy;
+	}
+
+	/**
+	 * @param attempts
+	 *            第几次重连尝试
+	 * @param disconnectTime
+	 *            意外断开的时间
+	 */
+	void setReconnect(int attempts, long disconnectTime) {
+		this.reconnectAttempts = attempts;
+		this.disconnectTime = disconnectTime;
+	}
+
+	/**
+	 * 经过几次尝试才重连成功，0表示不是重连
+	 */
+	public int getReconnectAttempts() {
+		return reconnectAttempts;
+	}
+
+	long getDisconnectTime() {
+		return disconnectTime;
+	}
+
+	/**
+	 * 从意外断开到重连成功的耗时，单位毫秒
+	 */
+	public long getReconnectElapsed() {
+		return reconnectElapsed;
+	}
+
+	/**
+	 * 服务发现、MTU协商完成，记录连接耗时
+	 */
+	void setReady(long now) {
+		wasReady = true;
+		readyTime = now;
+		connectElapsed = now - connectStartTime;
+		if (reconnectAttempts > 0) {
+			reconnectElapsed = now - disconnectTime;
+		}
+	}
+
+	/**
+	 * 本连接是否曾经就绪，用来区分意外断开和连接失败；当前能否读写以getState()为准
+	 */
+	boolean wasReady() {
+		return wasReady;
+	}
+
+	/**
+	 * 主动断开，断开后不再重连
+	 */
+	void setClosing() {
+		isClosing = true;
+	}
+
+	boolean isClosing() {
+		return isClosing;
+	}
+
+	/**
+	 * @return 原来的超时任务
+	 */
+	synchronized Runnable setWatchdog(Runnable watchdog) {
+		Runnable old = this.watchdog;
+		this.watchdog = watchdog;
+		return old;
+	}
+
+	/**
+	 * 单次写入的最大有效载荷
+	 */
+	public int getMaxWriteLength() {
+		return mtu - ATT_HEADER_SIZE;
+	}
+
+	/**
+	 * 未完成的操作全部以失败结束，并释放BluetoothGatt
+	 */
+	synchronized void close() {
+		mtu = DEFAULT_MTU;
+		characteristicCache.clear();
+		if (operationQueue != null) {
+			operationQueue.clear();
+		}
+		if (gatt != null) {
+			gatt.close();
+			gatt = null;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package doext.bluetooth.le;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.util.Log;
+
+/**
+ * 设备GATT结构的快照：服务、特征、特征属性以及已开启通知的特征，按设备地址保存为JSON文件；
+ * 重连时与新发现的结构比对，一致时自动恢复通知订阅
+ */
+public class DoGattLayout {
+	private final static String TAG = DoGattLayout.class.getSimpleName();
+
+	// 服务UUID -> (特征UUID -> 属性)，创建后不再修改
+	private final Map<String, Map<String, Integer>> services = new LinkedHashMap<String, Map<String, Integer>>();
+	// 已开启通知的特征“服务UUID/特征UUID” -> 值的编码方式DoValueEncoding.*，UUID均为小写
+	private final Map<String, Integer> subscriptions = new LinkedHashMap<String, Integer>();
+
+	private DoGattLayout() {
+	}
+
+	/**
+	 * 由服务发现的结果生成，不包含订阅
+	 */
+	public static DoGattLayout from(BluetoothGatt gatt) {
+		DoGattLayout layout = new DoGattLayout();
+		List<BluetoothGattService> gattServices = gatt.getServices();
+		if (gattServices == null) {
+			return layout;
+		}
+		for (BluetoothGattService gattService : gattServices) {
+			Map<String, Integer> characteristics = new LinkedHashMap<String, Integer>();
+			List<BluetoothGattCharacteristic> gattCharacteristics = gattService.getCharacteristics();
+			if (gattCharacteristics != null) {
+				for (BluetoothGattCharacteristic characteristic : gattCharacteristics) {
+					characteristics.put(characteristic.getUuid().toString(), characteristic.getProperties());
+				}
+			}
+			layout.services.put(gattService.getUuid().toString(), characteristics);
+		}
+		return layout;
+	}
+
+	/**
+	 * 服务、特征及其属性是否完全一致，不比较订阅
+	 */
+	public boolean matches(DoGattLayout other) {
+		return other != null && services.equals(other.services);
+	}
+
+	/**
+	 * @param encoding
+	 *            DoValueEncoding.*，重连恢复订阅时沿用
+	 */
+	public synchronized void addSubscription(String sUUID, String cUUID, int encoding) {
+		subscriptions.put(key(sUUID, cUUID), encoding);
+	}
+
+	/**
+	 * @return 每项为{服务UUID, 特征UUID}
+	 */
+	public synchronized List<String[]> getSubscriptions() {
+		List<String[]> list = new ArrayList<String[]>(subscriptions.size());
+		for (String subscription : subscriptions.keySet()) {
+			list.add(subscription.split("/"));
+		}
+		return list;
+	}
+
+	/**
+	 * @return 订阅时指定的编码方式，没有订阅或旧版本的快照返回DoValueEncoding.UNKNOWN
+	 */
+	public synchronized int getEncoding(String sUUID, String cUUID) {
+		Integer encoding = subscriptions.get(key(sUUID, cUUID));
+		return encoding == null ? DoValueEncoding.UNKNOWN : encoding;
+	}
+
+	/**
+	 * 复制other中的订阅，只保留本结构中存在的特征
+	 */
+	public void copySubscriptions(DoGattLayout other) {
+		for (String[] subscription : other.getSubscriptions()) {
+			Map<String, Integer> characteristics = services.get(subscription[0]);
+			if (characteristics != null && characteristics.containsKey(subscription[1])) {
+				addSubscription(subscription[0], subscription[1], other.getEncoding(subscription[0], subscription[1]));
+			}
+		}
+	}
+
+	public synchronized JSONObject toJson() throws JSONException {
+		JSONArray jsonServices = new JSONArray();
+		for (Map.Entry<String, Map<String, Integer>> service : services.entrySet()) {
+			JSONArray jsonCharacteristics = new JSONArray();
+			for (Map.Entry<String, Integer> characteristic : service.getValue().entrySet()) {
+				JSONObject jsonCharacteristic = new JSONObject();
+				jsonCharacteristic.put("uuid", characteristic.getKey());
+				jsonCharacteristic.put("properties", characteristic.getValue());
+				jsonCharacteristics.put(jsonCharacteristic);
+			}
+			JSONObject jsonService = new JSONObject();
+			jsonService.put("uuid", service.getKey());
+			jsonService.put("characteristics", jsonCharacteristics);
+			jsonServices.put(jsonService);
+		}
+		JSONObject json = new JSONObject();
+		json.put("services", jsonServices);
+		JSONArray jsonSubscriptions = new JSONArray();
+		JSONObject jsonEncodings = new JSONObject();
+		for (Map.Entry<String, Integer> subscription : subscriptions.entrySet()) {
+			jsonSubscriptions.put(subscription.getKey());
+			if (subscription.getValue() != DoValueEncoding.UNKNOWN) {
+				jsonEncodings.put(subscription.getKey(), DoValueEncoding.getName(subscription.getValue()));
+			}
+		}
+		json.put("subscriptions", jsonSubscriptions);
+		json.put("encodings", jsonEncodings);
+		return json;
+	}
+
+	public static DoGattLayout fromJson(JSONObject json) throws JSONException {
+		DoGattLayout layout = new DoGattLayout();
+		JSONArray jsonServices = json.getJSONArray("services");
+		for (int i = 0; i < jsonServices.length(); i++) {
+			JSONObject jsonService = jsonServices.getJSONObject(i);
+			JSONArray jsonCharacteristics = jsonService.getJSONArray("characteristics");
+			Map<String, Integer> characteristics = new LinkedHashMap<String, Integer>();
+			for (int j = 0; j < jsonCharacteristics.length(); j++) {
+				JSONObject jsonCharacteristic = jsonCharacteristics.getJSONObject(j);
+				characteristics.put(jsonCharacteristic.getString("uuid"), jsonCharacteristic.getInt("properties"));
+			}
+			layout.services.put(jsonService.getString("uuid"), characteristics);
+		}
+		JSONArray jsonSubscriptions = json.optJSONArray("subscriptions");
+		// 旧版本的快照没有encodings
+		JSONObject jsonEncodings = json.optJSONObject("encodings");
+		if (jsonSubscriptions != null) {
+			for (int i = 0; i < jsonSubscriptions.length(); i++) {
+				String subscription = jsonSubscriptions.getString(i);
+				String encodingName = jsonEncodings == null ? null : jsonEncodings.optString(subscription);
+				layout.subscriptions.put(subscription, DoValueEncoding.parse(encodingName));
+			}
+		}
+		return layout;
+	}
+
+	/**
+	 * 读取设备的快照
+	 *
+	 * @return 没有或无法解析时返回null
+	 */
+	public static DoGattLayout load(File dir, String address) {
+		File file = getFile(dir, address);
+		if (!file.isFile()) {
+			return null;
+		}
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+			byte[] buffer = new byte[4096];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+			return fromJson(new JSONObject(out.toString("UTF-8")));
+		} catch (Exception e) {
+			Log.w(TAG, "load gatt layout failed:" + file, e);
+			file.delete();
+			return null;
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	/**
+	 * 先写临时文件再改名，避免写到一半时进程退出留下不完整的快照
+	 */
+	public void save(File dir, String address) {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			Log.w(TAG, "create directory failed:" + dir);
+			return;
+		}
+		File file = getFile(dir, address);
+		File temp = new File(dir, file.getName() + ".tmp");
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(temp);
+			out.write(toJson().toString().getBytes("UTF-8"));
+			out.close();
+			out = null;
+			if (!temp.renameTo(file)) {
+				Log.w(TAG, "rename gatt layout failed:" + file);
+			}
+		} catch (Exception e) {
+			Log.w(TAG, "save gatt layout failed:" + file, e);
+		} finally {
+			closeQuietly(out);
+		}
+	}
+
+	private static File getFile(File dir, String address) {
+		return new File(dir, address.replace(":", "").toUpperCase(Locale.US) + ".json");
+	}
+
+	private static String key(String sUUID, String cUUID) {
+		return sUUID.toLowerCase(Locale.US) + "/" + cUUID.toLowerCase(Locale.US);
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package doext.bluetooth.le;
+
+import java.util.UUID;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Build;
+import android.os.SystemClock;
+
+/**
+ * 一次GATT操作（读、写、写描述符、申请MTU），由DoGattOperationQueue串行执行；
+ * 每个操作在对应的BluetoothGattCallback回调后结束，并单独通知OnCompleteListener。
+ */
+public abstract class DoGattOperation {
+
+	public static final int TYPE_WRITE = 0;
+	public static final int TYPE_READ = 1;
+	public static final int TYPE_DESCRIPTOR_WRITE = 2;
+	public static final int TYPE_MTU = 3;
+
+	// execute/onResult的返回值：已提交，等待下一次回调
+	static final int STARTED = 0;
+	// 操作已完成
+	static final int FINISHED = 1;
+	// 操作失败
+	static final int FAILED = -1;
+
+	public static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString(DoGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+
+	public interface OnCompleteListener {
+		/**
+		 * @param result
+		 *            0成功，-1失败
+		 */
+		void onComplete(DoGattOperation operation, int result);
+	}
+
+	private final int type;
+	private final OnCompleteListener listener;
+
+	protected DoGattOperation(int type, OnCompleteListener listener) {
+		this.type = type;
+		this.listener = listener;
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * 向协议栈提交操作
+	 */
+	abstract int execute(BluetoothGatt gatt);
+
+	/**
+	 * 收到与该操作对应的回调
+	 */
+	int onResult(BluetoothGatt gatt, int status) {
+		return status == BluetoothGatt.GATT_SUCCESS ? FINISHED : FAILED;
+	}
+
+	void complete(int result) {
+		if (listener != null) {
+			listener.onComplete(this, result);
+		}
+	}
+
+	/**
+	 * 分包写入特征值，noResponse为true且特征支持PROPERTY_WRITE_NO_RESPONSE时使用无响应写入，
+	 * 最多NO_RESPONSE_WINDOW个分包同时在途；否则退回到逐包确认的写入方式
+	 */
+	public static class Write extends DoGattOperation {
+		// 无响应写入时允许同时在途的分包数
+		private static final int NO_RESPONSE_WINDOW = 4;
+
+		private final BluetoothGattCharacteristic characteristic;
+		private final DoWriteChunkSource source;
+		private final boolean enableNotification;
+		private final boolean requestNoResponse;
+		private boolean noResponse;
+		private int inFlight;
+		private byte[] nextChunk;
+		// 传输统计
+		private long startTime;
+		private long endTime;
+		private int writtenBytes;
+		private int chunkCount;
+
+		public Write(BluetoothGattCharacteristic characteristic, DoWriteChunkSource source, boolean enableNotification, boolean noResponse, OnCompleteListener listener) {
+			super(TYPE_WRITE, listener);
+			this.characteristic = characteristic;
+			this.source = source;
+			this.enableNotification = enableNotification;
+			this.requestNoResponse = noResponse;
+		}
+
+		public DoWriteChunkSource getSource() {
+			return source;
+		}
+
+		public BluetoothGattCharacteristic getCharacteristic() {
+			return characteristic;
+		}
+
+		/**
+		 * 已提交给协议栈的字节数
+		 */
+		public int getWrittenBytes() {
+			return writtenBytes;
+		}
+
+		public int getChunkCount() {
+			return chunkCount;
+		}
+
+		/**
+		 * 从第一个分包提交到最后一个分包回调的耗时，单位毫秒
+		 */
+		public long getElapsedTime() {
+			return (endTime > 0 ? endTime : SystemClock.elapsedRealtime()) - startTime;
+		}
+
+		/**
+		 * 平均吞吐量，单位字节/秒
+		 */
+		public long getBytesPerSecond() {
+			long elapsed = getElapsedTime();
+			return elapsed > 0 ? writtenBytes * 1000L / elapsed : writtenBytes;
+		}
+
+		@Override
+		void complete(int result) {
+			endTime = SystemClock.elapsedRealtime();
+			super.complete(result);
+		}
+
+		@Override
+		int execute(BluetoothGatt gatt) {
+			if (enableNotification) {
+				gatt.setCharacteristicNotification(characteristic, true);
+			}
+			startTime = SystemClock.elapsedRealtime();
+			noResponse = requestNoResponse && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) > 0;
+			characteristic.setWriteType(noResponse ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+			return writeWindow(gatt);
+		}
+
+		@Override
+		int onResult(BluetoothGatt gatt, int status) {
+			if (status != BluetoothGatt.GATT_SUCCESS) {
+				return FAILED;
+			}
+			if (inFlight > 0) {
+				inFlight--;
+			}
+			return writeWindow(gatt);
+		}
+
+		// 在窗口允许范围内连续写入分包，协议栈忙时保留当前分包，等待下一次onCharacteristicWrite再继续
+		private int writeWindow(BluetoothGatt gatt) {
+			int window = noResponse ? NO_RESPONSE_WINDOW : 1;
+			while (inFlight < window) {
+				if (nextChunk == null) {
+					nextChunk = source.nextChunk();
+				}
+				if (nextChunk == null) {
+					return inFlight == 0 ? FINISHED : STARTED;
+				}
+				characteristic.setValue(nextChunk);
+				if (!gatt.writeCharacteristic(characteristic)) {
+					return inFlight == 0 ? FAILED : STARTED;
+				}
+				writtenBytes += nextChunk.length;
+				chunkCount++;
+				nextChunk = null;
+				inFlight++;
+			}
+			return STARTED;
+		}
+
+		@Override
+		public String toString() {
+			return "Write[" + characteristic.getUuid() + "," + source + "]";
+		}
+	}
+
+	/**
+	 * 读取特征值
+	 */
+	public static class Read extends DoGattOperation {
+		private final BluetoothGattCharacteristic characteristic;
+
+		public Read(BluetoothGattCharacteristic characteristic, OnCompleteListener listener) {
+			super(TYPE_READ, listener);
+			this.characteristic = characteristic;
+		}
+
+		@Override
+		int execute(BluetoothGatt gatt) {
+			return gatt.readCharacteristic(characteristic) ? STARTED : FAILED;
+		}
+
+		@Override
+		public String toString() {
+			return "Read[" + characteristic.getUuid() + "]";
+		}
+	}
+
+	/**
+	 * 打开特征的通知，写入CCCD描述符
+	 */
+	public static class EnableNotification extends DoGattOperation {
+		private final BluetoothGattCharacteristic characteristic;
+
+		public EnableNotification(BluetoothGattCharacteristic characteristic, OnCompleteListener listener) {
+			super(TYPE_DESCRIPTOR_WRITE, listener);
+			this.characteristic = characteristic;
+		}
+
+		@Override
+		int execute(BluetoothGatt gatt) {
+			boolean isNotify = (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0;
+			if (!gatt.setCharacteristicNotification(characteristic, isNotify)) {
+				return FAILED;
+			}
+			BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+			if (descriptor == null) {
+				return FINISHED;
+			}
+			descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+			return gatt.writeDescriptor(descriptor) ? STARTED : FAILED;
+		}
+
+		@Override
+		public String toString() {
+			return "EnableNotification[" + characteristic.getUuid() + "]";
+		}
+	}
+
+	/**
+	 * 申请MTU，需要Android 5.0以上
+	 */
+	public static class RequestMtu extends DoGattOperation {
+		private final int mtu;
+
+		public RequestMtu(int mtu, OnCompleteListener listener) {
+			super(TYPE_MTU, listener);
+			this.mtu = mtu;
+		}
+
+		@Override
+		int execute(BluetoothGatt gatt) {
+			if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+				return FAILED;
+			}
+			return gatt.requestMtu(mtu) ? STARTED : FAILED;
+		}
+
+		@Override
+		public String toString() {
+			return "RequestMtu[" + mtu + "]";
+		}
+	}
+}
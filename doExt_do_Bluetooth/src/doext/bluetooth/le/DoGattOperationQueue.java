@@ -0,0 +1,96 @@
+package doext.bluetooth.le;
+
+import java.util.LinkedList;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * 单个连接上的GATT操作队列，Android同一时刻只允许一个未完成的GATT操作，
+ * 队列保证读、写、写描述符、申请MTU按提交顺序逐个执行，前一个操作回调后才开始下一个。
+ * 协议栈偶尔会丢失回调，当前操作超过OPERATION_TIMEOUT没有回调时以失败结束并继续下一个，避免整个队列卡住
+ */
+public class DoGattOperationQueue {
+	private final static String TAG = DoGattOperationQueue.class.getSimpleName();
+
+	// 等待一次GATT回调的最长时间，单位毫秒；分包写入每个分包的回调分别计时
+	public static final long OPERATION_TIMEOUT = 5000;
+
+	private final BluetoothGatt gatt;
+	private final LinkedList<DoGattOperation> pending = new LinkedList<DoGattOperation>();
+	private final Handler handler = DoBluetoothWorker.getHandler();
+	private DoGattOperation current;
+	private final Runnable timeoutTask = new Runnable() {
+		@Override
+		public void run() {
+			onTimeout();
+		}
+	};
+
+	public DoGattOperationQueue(BluetoothGatt gatt) {
+		this.gatt = gatt;
+	}
+
+	public synchronized void enqueue(DoGattOperation operation) {
+		pending.add(operation);
+		next();
+	}
+
+	/**
+	 * 分发GATT回调给当前正在执行的操作
+	 *
+	 * @param type
+	 *            回调对应的操作类型，与当前操作不符时忽略（例如非队列发起的写入）
+	 */
+	public synchronized void onResult(int type, int status) {
+		if (current == null || current.getType() != type) {
+			return;
+		}
+		advance(current.onResult(gatt, status));
+	}
+
+	/**
+	 * 连接断开时调用，当前及等待中的操作全部以失败结束
+	 */
+	public synchronized void clear() {
+		handler.removeCallbacks(timeoutTask);
+		DoGattOperation operation = current;
+		current = null;
+		if (operation != null) {
+			operation.complete(-1);
+		}
+		while (!pending.isEmpty()) {
+			pending.poll().complete(-1);
+		}
+	}
+
+	private synchronized void onTimeout() {
+		if (current == null) {
+			return;
+		}
+		Log.w(TAG, current + " timeout");
+		advance(DoGattOperation.FAILED);
+	}
+
+	private void advance(int state) {
+		handler.removeCallbacks(timeoutTask);
+		if (state == DoGattOperation.STARTED) {
+			// 每次等待回调都重新计时
+			handler.postDelayed(timeoutTask, OPERATION_TIMEOUT);
+			return;
+		}
+		DoGattOperation operation = current;
+		current = null;
+		Log.d(TAG, operation + (state == DoGattOperation.FINISHED ? " finished" : " failed"));
+		operation.complete(state == DoGattOperation.FINISHED ? 0 : -1);
+		next();
+	}
+
+	private void next() {
+		while (current == null && !pending.isEmpty()) {
+			current = pending.poll();
+			advance(current.execute(gatt));
+		}
+	}
+}
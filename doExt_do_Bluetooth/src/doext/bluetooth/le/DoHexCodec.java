@@ -0,0 +1,97 @@
+package doext.bluetooth.le;
+
+/**
+ * 查表实现的十六进制编解码，编码时每个字节直接查出两个字符，解码时每个字符直接查出半字节，
+ * 不经过Integer.toHexString/String.indexOf；解码同时接受大小写，并校验输入。
+ * 带目标数组参数的方法写入调用方预先分配的数组，适合在传输过程中复用缓冲区。
+ */
+public final class DoHexCodec {
+
+	private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+	// 字符 -> 半字节，非十六进制字符为-1
+	private static final byte[] NIBBLES = new byte[128];
+
+	static {
+		for (int i = 0; i < NIBBLES.length; i++) {
+			NIBBLES[i] = -1;
+		}
+		for (int i = 0; i < 10; i++) {
+			NIBBLES['0' + i] = (byte) i;
+		}
+		for (int i = 0; i < 6; i++) {
+			NIBBLES['a' + i] = (byte) (10 + i);
+			NIBBLES['A' + i] = (byte) (10 + i);
+		}
+	}
+
+	private DoHexCodec() {
+	}
+
+	/**
+	 * 编码到预先分配的字符数组，dst需要至少length*2个可用位置
+	 *
+	 * @return 写入的字符数
+	 */
+	public static int encode(byte[] src, int offset, int length, char[] dst, int dstOffset) {
+		for (int i = 0, j = dstOffset; i < length; i++) {
+			int v = src[offset + i] & 0xFF;
+			dst[j++] = DIGITS[v >>> 4];
+			dst[j++] = DIGITS[v & 0x0F];
+		}
+		return length * 2;
+	}
+
+	/**
+	 * 字节数组编码为小写十六进制字符串
+	 */
+	public static String encode(byte[] src, int offset, int length) {
+		char[] out = new char[length * 2];
+		encode(src, offset, length, out, 0);
+		return new String(out);
+	}
+
+	public static String encode(byte[] src) {
+		if (src == null) {
+			return "";
+		}
+		return encode(src, 0, src.length);
+	}
+
+	/**
+	 * 解码到预先分配的字节数组，dst需要至少length/2个可用位置
+	 *
+	 * @return 写入的字节数
+	 * @throws IllegalArgumentException
+	 *             长度为奇数或包含非十六进制字符
+	 */
+	public static int decode(CharSequence src, int offset, int length, byte[] dst, int dstOffset) {
+		if ((length & 1) != 0) {
+			throw new IllegalArgumentException("hex string length must be even:" + length);
+		}
+		for (int i = offset, j = dstOffset, end = offset + length; i < end; i += 2) {
+			dst[j++] = (byte) ((nibble(src, i) << 4) | nibble(src, i + 1));
+		}
+		return length / 2;
+	}
+
+	/**
+	 * 十六进制字符串解码为字节数组
+	 *
+	 * @throws IllegalArgumentException
+	 *             长度为奇数或包含非十六进制字符
+	 */
+	public static byte[] decode(CharSequence src) {
+		byte[] out = new byte[src.length() / 2];
+		decode(src, 0, src.length(), out, 0);
+		return out;
+	}
+
+	private static int nibble(CharSequence src, int index) {
+		char c = src.charAt(index);
+		int v = c < NIBBLES.length ? NIBBLES[c] : -1;
+		if (v < 0) {
+			throw new IllegalArgumentException("invalid hex char '" + c + "' at " + index);
+		}
+		return v;
+	}
+}
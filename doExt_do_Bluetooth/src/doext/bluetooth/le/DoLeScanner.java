@@ -0,0 +1,154 @@
+package doext.bluetooth.le;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.Build;
+import android.os.Handler;
+
+/**
+ * BLE扫描，Android 5.0以上使用BluetoothLeScanner并把过滤条件交给蓝牙控制器，
+ * 更早的系统使用startLeScan；两种方式都会在本地再按DoScanFilter过滤一次，
+ * 只有符合条件的广播才回调OnScanListener。
+ * 指定reportDelay时按批次上报：支持的控制器在芯片内缓存扫描结果，否则在本地定时结束批次，
+ * 每批结果逐个回调onScanResult后再回调onBatchEnd。
+ * 过滤和OnScanListener的回调都在DoBluetoothWorker的工作线程上执行
+ */
+public abstract class DoLeScanner {
+
+	// 扫描模式，取值与ScanSettings一致，Android 5.0以下只支持默认模式
+	public static final int SCAN_MODE_OPPORTUNISTIC = -1;
+	public static final int SCAN_MODE_LOW_POWER = 0;
+	public static final int SCAN_MODE_BALANCED = 1;
+	public static final int SCAN_MODE_LOW_LATENCY = 2;
+
+	public interface OnScanListener {
+		void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord);
+
+		/**
+		 * 一个批次的扫描结果已全部回调，只在reportDelay大于0时触发
+		 */
+		void onBatchEnd();
+
+		/**
+		 * 系统无法开始扫描，扫描已经结束
+		 *
+		 * @param errorCode
+		 *            ScanCallback.SCAN_FAILED_*
+		 */
+		void onScanFailed(int errorCode);
+	}
+
+	protected final BluetoothAdapter adapter;
+	protected final OnScanListener listener;
+	protected DoScanFilter filter;
+	private final Handler mHandler = DoBluetoothWorker.getHandler();
+	private long mBatchInterval;
+	private final Runnable mBatchTask = new Runnable() {
+		@Override
+		public void run() {
+			listener.onBatchEnd();
+			mHandler.postDelayed(this, mBatchInterval);
+		}
+	};
+
+	protected DoLeScanner(BluetoothAdapter adapter, OnScanListener listener) {
+		this.adapter = adapter;
+		this.listener = listener;
+	}
+
+	public static DoLeScanner create(BluetoothAdapter adapter, OnScanListener listener) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			return new DoLollipopLeScanner(adapter, listener);
+		}
+		return new DoLegacyLeScanner(adapter, listener);
+	}
+
+	/**
+	 * @param filter
+	 *            过滤条件，为null时不过滤
+	 * @param reportDelay
+	 *            批量上报的间隔，单位毫秒，不大于0时每个结果实时上报
+	 * @param scanMode
+	 *            SCAN_MODE_*
+	 */
+	public abstract boolean start(DoScanFilter filter, long reportDelay, int scanMode);
+
+	public abstract void stop();
+
+	/**
+	 * 控制器缓存扫描结果时，让它立即通过回调交出已缓存的结果，停止扫描前调用；本地定时结束批次时不需要
+	 */
+	public void flush() {
+	}
+
+	/**
+	 * 控制器不支持批量扫描时，在本地按interval定时结束批次
+	 */
+	protected void startBatchTimer(long interval) {
+		stopBatchTimer();
+		mBatchInterval = interval;
+		mHandler.postDelayed(mBatchTask, interval);
+	}
+
+	protected void stopBatchTimer() {
+		mHandler.removeCallbacks(mBatchTask);
+	}
+
+	/**
+	 * 扫描模式名称转为SCAN_MODE_*，支持lowPower、balanced、lowLatency、opportunistic
+	 *
+	 * @return 无法识别时返回defaultMode
+	 */
+	public static int parseScanMode(String name, int defaultMode) {
+		if ("lowPower".equals(name)) {
+			return SCAN_MODE_LOW_POWER;
+		} else if ("balanced".equals(name)) {
+			return SCAN_MODE_BALANCED;
+		} else if ("lowLatency".equals(name)) {
+			return SCAN_MODE_LOW_LATENCY;
+		} else if ("opportunistic".equals(name)) {
+			return SCAN_MODE_OPPORTUNISTIC;
+		}
+		return defaultMode;
+	}
+
+	/**
+	 * 扫描回调可能在主线程或Binder线程上，转到工作线程后再过滤和回调
+	 */
+	protected void dispatch(final BluetoothDevice device, final int rssi, final byte[] scanRecord) {
+		if (device == null) {
+			return;
+		}
+		final DoScanFilter currentFilter = filter;
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (currentFilter != null && !currentFilter.matches(device.getAddress(), device.getName(), scanRecord)) {
+					return;
+				}
+				listener.onScanResult(device, rssi, scanRecord);
+			}
+		});
+	}
+
+	protected void dispatchScanFailed(final int errorCode) {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				listener.onScanFailed(errorCode);
+			}
+		});
+	}
+
+	/**
+	 * 在本批次的结果都回调之后回调onBatchEnd
+	 */
+	protected void dispatchBatchEnd() {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				listener.onBatchEnd();
+			}
+		});
+	}
+}
@@ -0,0 +1,39 @@
+package doext.bluetooth.le;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * Android 5.0以下使用startLeScan扫描，过滤全部在本地完成，不支持选择扫描模式
+ */
+class DoLegacyLeScanner extends DoLeScanner {
+
+	private final BluetoothAdapter.LeScanCallback mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
+		@Override
+		public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+			dispatch(device, rssi, scanRecord);
+		}
+	};
+
+	DoLegacyLeScanner(BluetoothAdapter adapter, OnScanListener listener) {
+		super(adapter, listener);
+	}
+
+	@Override
+	public boolean start(DoScanFilter filter, long reportDelay, int scanMode) {
+		this.filter = filter == null || filter.isEmpty() ? null : filter;
+		if (!adapter.startLeScan(mLeScanCallback)) {
+			return false;
+		}
+		if (reportDelay > 0) {
+			startBatchTimer(reportDelay);
+		}
+		return true;
+	}
+
+	@Override
+	public void stop() {
+		stopBatchTimer();
+		adapter.stopLeScan(mLeScanCallback);
+	}
+}
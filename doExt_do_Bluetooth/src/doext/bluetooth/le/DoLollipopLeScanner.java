@@ -0,0 +1,126 @@
+package doext.bluetooth.le;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+/**
+ * Android 5.0以上使用BluetoothLeScanner扫描，服务UUID、地址、厂商ID通过ScanFilter交给蓝牙控制器过滤，
+ * 不符合条件的广播不会唤醒应用处理器
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class DoLollipopLeScanner extends DoLeScanner {
+	private final static String TAG = DoLollipopLeScanner.class.getSimpleName();
+
+	private BluetoothLeScanner mScanner;
+	// 由控制器缓存扫描结果
+	private boolean mIsOffloaded;
+
+	private final ScanCallback mScanCallback = new ScanCallback() {
+		@Override
+		public void onScanResult(int callbackType, ScanResult result) {
+			dispatch(result);
+		}
+
+		@Override
+		public void onBatchScanResults(List<ScanResult> results) {
+			for (ScanResult result : results) {
+				dispatch(result);
+			}
+			dispatchBatchEnd();
+		}
+
+		@Override
+		public void onScanFailed(int errorCode) {
+			Log.w(TAG, "scan failed:" + errorCode);
+			dispatchScanFailed(errorCode);
+		}
+	};
+
+	DoLollipopLeScanner(BluetoothAdapter adapter, OnScanListener listener) {
+		super(adapter, listener);
+	}
+
+	@Override
+	public boolean start(DoScanFilter filter, long reportDelay, int scanMode) {
+		mScanner = adapter.getBluetoothLeScanner();
+		if (mScanner == null) {
+			// 蓝牙未打开
+			return false;
+		}
+		this.filter = filter == null || filter.isEmpty() ? null : filter;
+		ScanSettings.Builder settings = new ScanSettings.Builder();
+		// 机会扫描需要Android 6.0以上，更早的系统使用低功耗模式
+		if (scanMode == SCAN_MODE_OPPORTUNISTIC && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+			scanMode = SCAN_MODE_LOW_POWER;
+		}
+		settings.setScanMode(scanMode);
+		// 控制器支持时由芯片缓存扫描结果，到期后通过onBatchScanResults一次性返回
+		mIsOffloaded = reportDelay > 0 && adapter.isOffloadedScanBatchingSupported();
+		if (mIsOffloaded) {
+			settings.setReportDelay(reportDelay);
+		}
+		mScanner.startScan(buildScanFilters(this.filter), settings.build(), mScanCallback);
+		if (reportDelay > 0 && !mIsOffloaded) {
+			startBatchTimer(reportDelay);
+		}
+		return true;
+	}
+
+	@Override
+	public void flush() {
+		if (mIsOffloaded && mScanner != null && adapter.isEnabled()) {
+			mScanner.flushPendingScanResults(mScanCallback);
+		}
+	}
+
+	@Override
+	public void stop() {
+		stopBatchTimer();
+		if (mScanner != null && adapter.isEnabled()) {
+			mScanner.stopScan(mScanCallback);
+		}
+		mScanner = null;
+	}
+
+	private void dispatch(ScanResult result) {
+		ScanRecord record = result.getScanRecord();
+		dispatch(result.getDevice(), result.getRssi(), record == null ? null : record.getBytes());
+	}
+
+	// 名称前缀无法交给控制器，仍在本地过滤；多个服务UUID对应多个ScanFilter，控制器按“或”匹配
+	private static List<ScanFilter> buildScanFilters(DoScanFilter filter) {
+		if (filter == null) {
+			return null;
+		}
+		List<ScanFilter> scanFilters = new ArrayList<ScanFilter>();
+		List<UUID> serviceUuids = filter.getServiceUuids();
+		int count = Math.max(serviceUuids.size(), 1);
+		for (int i = 0; i < count; i++) {
+			ScanFilter.Builder builder = new ScanFilter.Builder();
+			if (!serviceUuids.isEmpty()) {
+				builder.setServiceUuid(new ParcelUuid(serviceUuids.get(i)));
+			}
+			if (filter.getAddress() != null) {
+				builder.setDeviceAddress(filter.getAddress());
+			}
+			if (filter.getManufacturerId() != DoScanFilter.NO_MANUFACTURER_ID) {
+				builder.setManufacturerData(filter.getManufacturerId(), new byte[0]);
+			}
+			scanFilters.add(builder.build());
+		}
+		return scanFilters;
+	}
+}
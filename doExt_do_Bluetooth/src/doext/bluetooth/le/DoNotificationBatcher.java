@@ -0,0 +1,151 @@
+package doext.bluetooth.le;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.os.Handler;
+
+/**
+ * 按设备和特征合并通知，在指定时间间隔内或累计到指定条数后一次性交给OnBatchListener，
+ * 减少高频数据流跨越JS桥的次数；未配置合并的特征不受影响。
+ */
+public class DoNotificationBatcher {
+
+	public interface OnBatchListener {
+		/**
+		 * @param values
+		 *            本批次的特征值，前count个有效
+		 * @param times
+		 *            每个特征值收到时的时间戳，单位毫秒
+		 */
+		void onBatch(String address, String uuid, byte[][] values, long[] times, int count);
+	}
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final Handler handler;
+	private final OnBatchListener listener;
+	private final Map<String, Batch> batches = new ConcurrentHashMap<String, Batch>();
+
+	/**
+	 * @param handler
+	 *            按时间间隔合并时，在该Handler所在线程上发送批次
+	 */
+	public DoNotificationBatcher(Handler handler, OnBatchListener listener) {
+		this.handler = handler;
+		this.listener = listener;
+	}
+
+	/**
+	 * 配置特征的合并方式，interval和maxCount都不大于0时取消合并
+	 *
+	 * @param interval
+	 *            合并的时间间隔，单位毫秒，从批次中第一条通知开始计算
+	 * @param maxCount
+	 *            累计到该条数时立即发送
+	 */
+	public void configure(String address, String uuid, long interval, int maxCount) {
+		String key = address + "/" + uuid;
+		Batch old = batches.remove(key);
+		if (old != null) {
+			old.flush();
+		}
+		if (interval > 0 || maxCount > 0) {
+			batches.put(key, new Batch(address, uuid, interval, maxCount));
+		}
+	}
+
+	/**
+	 * @return false表示该特征没有配置合并，调用方需要自己发送
+	 */
+	public boolean offer(String address, String uuid, byte[] value) {
+		Batch batch = batches.get(address + "/" + uuid);
+		if (batch == null) {
+			return false;
+		}
+		batch.add(value, System.currentTimeMillis());
+		return true;
+	}
+
+	/**
+	 * 发送所有未满的批次并取消合并配置
+	 */
+	public void clear() {
+		for (Batch batch : batches.values()) {
+			batch.flush();
+		}
+		batches.clear();
+	}
+
+	private class Batch implements Runnable {
+		private final String address;
+		private final String uuid;
+		private final long interval;
+		private final int maxCount;
+		private byte[][] values;
+		private long[] times;
+		private int count;
+
+		Batch(String address, String uuid, long interval, int maxCount) {
+			this.address = address;
+			this.uuid = uuid;
+			this.interval = interval;
+			this.maxCount = maxCount;
+			int capacity = maxCount > 0 ? maxCount : INITIAL_CAPACITY;
+			this.values = new byte[capacity][];
+			this.times = new long[capacity];
+		}
+
+		void add(byte[] value, long time) {
+			boolean isFull;
+			synchronized (this) {
+				if (count == values.length) {
+					grow();
+				}
+				values[count] = value;
+				times[count] = time;
+				count++;
+				isFull = maxCount > 0 && count >= maxCount;
+				if (count == 1 && !isFull && interval > 0) {
+					handler.postDelayed(this, interval);
+				}
+			}
+			if (isFull) {
+				flush();
+			}
+		}
+
+		@Override
+		public void run() {
+			flush();
+		}
+
+		void flush() {
+			byte[][] flushValues;
+			long[] flushTimes;
+			int flushCount;
+			synchronized (this) {
+				handler.removeCallbacks(this);
+				if (count == 0) {
+					return;
+				}
+				flushValues = values;
+				flushTimes = times;
+				flushCount = count;
+				values = new byte[flushValues.length][];
+				times = new long[flushTimes.length];
+				count = 0;
+			}
+			listener.onBatch(address, uuid, flushValues, flushTimes, flushCount);
+		}
+
+		private void grow() {
+			byte[][] newValues = new byte[values.length * 2][];
+			long[] newTimes = new long[times.length * 2];
+			System.arraycopy(values, 0, newValues, 0, count);
+			System.arraycopy(times, 0, newTimes, 0, count);
+			values = newValues;
+			times = newTimes;
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package doext.bluetooth.le;
+
+import java.util.Random;
+
+/**
+ * 连接意外断开后的自动重连策略：第n次尝试前等待initialDelay*2^(n-1)毫秒，不超过maxDelay，
+ * 并加上±20%的随机抖动，避免多个设备同时重连；超过maxAttempts次后，autoConnect为true时
+ * 改用connectGatt(autoConnect=true)交给系统在后台低功耗等待设备，否则放弃
+ */
+public class DoReconnectPolicy {
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+	public static final long DEFAULT_INITIAL_DELAY = 1000;
+	public static final long DEFAULT_MAX_DELAY = 30000;
+	private static final double JITTER = 0.2;
+
+	private final int maxAttempts;
+	private final long initialDelay;
+	private final long maxDelay;
+	private final boolean autoConnect;
+	private final Random random = new Random();
+
+	public DoReconnectPolicy(int maxAttempts, long initialDelay, long maxDelay, boolean autoConnect) {
+		this.maxAttempts = maxAttempts;
+		this.initialDelay = initialDelay > 0 ? initialDelay : DEFAULT_INITIAL_DELAY;
+		this.maxDelay = Math.max(maxDelay, this.initialDelay);
+		this.autoConnect = autoConnect;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public boolean isAutoConnect() {
+		return autoConnect;
+	}
+
+	/**
+	 * @param attempt
+	 *            第几次尝试，从1开始
+	 * @return 本次尝试前的等待时间，单位毫秒
+	 */
+	public long getDelay(int attempt) {
+		long delay = maxDelay;
+		int shift = attempt - 1;
+		if (shift < 31 && (initialDelay << shift) < maxDelay) {
+			delay = initialDelay << shift;
+		}
+		double jitter;
+		synchronized (random) {
+			jitter = (random.nextDouble() * 2 - 1) * JITTER;
+		}
+		return Math.round(delay * (1 + jitter));
+	}
+}
@@ -0,0 +1,92 @@
+package doext.bluetooth.le;
+
+/**
+ * 扫描到的设备，RSSI做指数平滑以滤掉单次广播的抖动
+ */
+public class DoScanDevice {
+	// RSSI平滑系数，越大越贴近最新值
+	private static final float RSSI_SMOOTHING = 0.3f;
+
+	private final String address;
+	private String name;
+	private int rssi;
+	private float smoothedRssi;
+	private int reportedRssi;
+	private long lastReportTime;
+	private long lastSeenTime;
+	private int advertisementCount;
+	private byte[] scanRecord;
+
+	DoScanDevice(String address, String name, int rssi, byte[] scanRecord, long now) {
+		this.address = address;
+		this.name = name;
+		this.rssi = rssi;
+		this.scanRecord = scanRecord;
+		this.smoothedRssi = rssi;
+		this.lastSeenTime = now;
+		this.advertisementCount = 1;
+	}
+
+	void update(String name, int rssi, byte[] scanRecord, long now) {
+		if (name != null) {
+			this.name = name;
+		}
+		this.rssi = rssi;
+		if (scanRecord != null) {
+			this.scanRecord = scanRecord;
+		}
+		this.smoothedRssi += RSSI_SMOOTHING * (rssi - smoothedRssi);
+		this.lastSeenTime = now;
+		this.advertisementCount++;
+	}
+
+	void markReported(long now) {
+		this.reportedRssi = getSmoothedRssi();
+		this.lastReportTime = now;
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	/**
+	 * 设备名称，未知时为空字符串
+	 */
+	public String getName() {
+		return name == null ? "" : name;
+	}
+
+	/**
+	 * 最近一次广播的RSSI
+	 */
+	public int getRssi() {
+		return rssi;
+	}
+
+	public int getSmoothedRssi() {
+		return Math.round(smoothedRssi);
+	}
+
+	int getReportedRssi() {
+		return reportedRssi;
+	}
+
+	long getLastReportTime() {
+		return lastReportTime;
+	}
+
+	public long getLastSeenTime() {
+		return lastSeenTime;
+	}
+
+	/**
+	 * 最近一次的广播数据，未做拷贝，不能修改
+	 */
+	public byte[] getScanRecord() {
+		return scanRecord;
+	}
+
+	public int getAdvertisementCount() {
+		return advertisementCount;
+	}
+}
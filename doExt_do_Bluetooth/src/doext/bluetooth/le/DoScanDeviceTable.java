@@ -0,0 +1,117 @@
+package doext.bluetooth.le;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 以设备地址为key的扫描设备表，对重复的广播去重，只有以下情况才需要上报scan事件：
+ * 第一次发现的设备、平滑后的RSSI变化超过rssiThreshold、距上次上报超过reportInterval；
+ * 表按访问顺序排列，最久没有广播的设备在最前面，超过maxSize时淘汰最前面的设备
+ */
+public class DoScanDeviceTable {
+
+	public static final int DEFAULT_RSSI_THRESHOLD = 5;
+	public static final int DEFAULT_MAX_SIZE = 256;
+
+	private int maxSize = DEFAULT_MAX_SIZE;
+	private final Map<String, DoScanDevice> devices = new LinkedHashMap<String, DoScanDevice>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, DoScanDevice> eldest) {
+			return size() > maxSize;
+		}
+	};
+	private int rssiThreshold = DEFAULT_RSSI_THRESHOLD;
+	private long reportInterval;
+
+	/**
+	 * @param rssiThreshold
+	 *            RSSI变化超过该值(dBm)时上报
+	 * @param reportInterval
+	 *            同一设备的定时上报间隔，单位毫秒，不大于0时不定时上报
+	 */
+	public synchronized void configure(int rssiThreshold, long reportInterval) {
+		this.rssiThreshold = rssiThreshold;
+		this.reportInterval = reportInterval;
+	}
+
+	/**
+	 * @param maxSize
+	 *            最多记录的设备数，不大于0时使用DEFAULT_MAX_SIZE
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		this.maxSize = maxSize > 0 ? maxSize : DEFAULT_MAX_SIZE;
+		Iterator<DoScanDevice> iterator = devices.values().iterator();
+		while (devices.size() > this.maxSize && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * 记录一次广播
+	 *
+	 * @return 需要上报时返回设备，否则返回null
+	 */
+	public synchronized DoScanDevice update(String address, String name, int rssi, byte[] scanRecord, long now) {
+		DoScanDevice device = devices.get(address);
+		if (device == null) {
+			device = new DoScanDevice(address, name, rssi, scanRecord, now);
+			devices.put(address, device);
+			device.markReported(now);
+			return device;
+		}
+		device.update(name, rssi, scanRecord, now);
+		if (Math.abs(device.getSmoothedRssi() - device.getReportedRssi()) >= rssiThreshold || (reportInterval > 0 && now - device.getLastReportTime() >= reportInterval)) {
+			device.markReported(now);
+			return device;
+		}
+		return null;
+	}
+
+	public synchronized DoScanDevice get(String address) {
+		return devices.get(address);
+	}
+
+	/**
+	 * 移除超过timeout没有广播的设备
+	 *
+	 * @return 被移除的设备，没有时返回空列表
+	 */
+	public synchronized List<DoScanDevice> expire(long now, long timeout) {
+		List<DoScanDevice> lost = new ArrayList<DoScanDevice>();
+		Iterator<DoScanDevice> iterator = devices.values().iterator();
+		while (iterator.hasNext()) {
+			DoScanDevice device = iterator.next();
+			// 按最近访问排序，遇到第一个未过期的设备即可结束
+			if (now - device.getLastSeenTime() < timeout) {
+				break;
+			}
+			iterator.remove();
+			lost.add(device);
+		}
+		return lost;
+	}
+
+	/**
+	 * 当前记录的所有设备，最近广播的在前
+	 */
+	public synchronized List<DoScanDevice> snapshot() {
+		List<DoScanDevice> list = new ArrayList<DoScanDevice>(devices.values());
+		Collections.reverse(list);
+		return list;
+	}
+
+	public synchronized int size() {
+		return devices.size();
+	}
+
+	public synchronized void clear() {
+		devices.clear();
+	}
+}
@@ -0,0 +1,118 @@
+package doext.bluetooth.le;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+
+/**
+ * 扫描过滤条件，各条件之间是“与”的关系，serviceUuids中的多个UUID之间是“或”的关系；
+ * Android 5.0以上服务UUID、地址、厂商ID会交给蓝牙控制器过滤，名称前缀以及更早的系统在本地过滤
+ */
+public class DoScanFilter {
+
+	public static final int NO_MANUFACTURER_ID = -1;
+
+	private final List<UUID> serviceUuids = new ArrayList<UUID>();
+	private String namePrefix;
+	private String address;
+	private int manufacturerId = NO_MANUFACTURER_ID;
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             uuid格式不正确
+	 */
+	public DoScanFilter addServiceUuid(String uuid) {
+		serviceUuids.add(UUID.fromString(uuid));
+		return this;
+	}
+
+	public DoScanFilter setNamePrefix(String namePrefix) {
+		this.namePrefix = namePrefix == null || namePrefix.length() == 0 ? null : namePrefix;
+		return this;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             address不是XX:XX:XX:XX:XX:XX格式，否则要到开始扫描时才会由系统抛出
+	 */
+	public DoScanFilter setAddress(String address) {
+		if (address == null || address.length() == 0) {
+			this.address = null;
+			return this;
+		}
+		String upperAddress = address.toUpperCase(Locale.US);
+		if (!BluetoothAdapter.checkBluetoothAddress(upperAddress)) {
+			throw new IllegalArgumentException("invalid address: " + address);
+		}
+		this.address = upperAddress;
+		return this;
+	}
+
+	/**
+	 * @param manufacturerId
+	 *            0~0xFFFF，NO_MANUFACTURER_ID表示不过滤
+	 * @throws IllegalArgumentException
+	 *             超出范围，否则要到开始扫描时才会由系统抛出
+	 */
+	public DoScanFilter setManufacturerId(int manufacturerId) {
+		if (manufacturerId != NO_MANUFACTURER_ID && (manufacturerId < 0 || manufacturerId > 0xFFFF)) {
+			throw new IllegalArgumentException("invalid manufacturerId: " + manufacturerId);
+		}
+		this.manufacturerId = manufacturerId;
+		return this;
+	}
+
+	public List<UUID> getServiceUuids() {
+		return serviceUuids;
+	}
+
+	public String getNamePrefix() {
+		return namePrefix;
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	public int getManufacturerId() {
+		return manufacturerId;
+	}
+
+	public boolean isEmpty() {
+		return serviceUuids.isEmpty() && namePrefix == null && address == null && manufacturerId == NO_MANUFACTURER_ID;
+	}
+
+	/**
+	 * 本地过滤，在构造任何事件数据之前调用
+	 *
+	 * @param name
+	 *            系统缓存的设备名称，可能为null，此时使用广播中的名称
+	 */
+	public boolean matches(String deviceAddress, String name, byte[] scanRecord) {
+		if (address != null && !address.equals(deviceAddress)) {
+			return false;
+		}
+		if (manufacturerId != NO_MANUFACTURER_ID && !DoScanRecord.hasManufacturerId(scanRecord, manufacturerId)) {
+			return false;
+		}
+		if (!serviceUuids.isEmpty()) {
+			boolean isMatch = false;
+			for (int i = 0; i < serviceUuids.size() && !isMatch; i++) {
+				isMatch = DoScanRecord.hasServiceUuid(scanRecord, serviceUuids.get(i));
+			}
+			if (!isMatch) {
+				return false;
+			}
+		}
+		if (namePrefix != null) {
+			if (name == null) {
+				name = DoScanRecord.getLocalName(scanRecord);
+			}
+			return name != null && name.startsWith(namePrefix);
+		}
+		return true;
+	}
+}
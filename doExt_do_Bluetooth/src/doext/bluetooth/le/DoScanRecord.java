@@ -0,0 +1,299 @@
+package doext.bluetooth.le;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 广播数据(AD structure)的解析，直接在原始scanRecord上按[长度][类型][数据]逐段遍历，不拷贝中间数据
+ */
+public final class DoScanRecord {
+
+	public static final int TYPE_FLAGS = 0x01;
+	public static final int TYPE_SERVICE_UUIDS_16_BIT_PARTIAL = 0x02;
+	public static final int TYPE_SERVICE_UUIDS_16_BIT_COMPLETE = 0x03;
+	public static final int TYPE_SERVICE_UUIDS_32_BIT_PARTIAL = 0x04;
+	public static final int TYPE_SERVICE_UUIDS_32_BIT_COMPLETE = 0x05;
+	public static final int TYPE_SERVICE_UUIDS_128_BIT_PARTIAL = 0x06;
+	public static final int TYPE_SERVICE_UUIDS_128_BIT_COMPLETE = 0x07;
+	public static final int TYPE_LOCAL_NAME_SHORT = 0x08;
+	public static final int TYPE_LOCAL_NAME_COMPLETE = 0x09;
+	public static final int TYPE_TX_POWER_LEVEL = 0x0A;
+	public static final int TYPE_SERVICE_DATA_16_BIT = 0x16;
+	public static final int TYPE_SERVICE_DATA_32_BIT = 0x20;
+	public static final int TYPE_SERVICE_DATA_128_BIT = 0x21;
+	public static final int TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+	// 蓝牙基础UUID 0000xxxx-0000-1000-8000-00805f9b34fb
+	private static final long BASE_UUID_MSB = 0x0000000000001000L;
+	private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// toJson需要输出的字段，可以组合使用
+	public static final int FIELD_LOCAL_NAME = 1;
+	public static final int FIELD_SERVICE_UUIDS = 1 << 1;
+	public static final int FIELD_MANUFACTURER_DATA = 1 << 2;
+	public static final int FIELD_TX_POWER = 1 << 3;
+	public static final int FIELD_SERVICE_DATA = 1 << 4;
+	public static final int FIELD_FLAGS = 1 << 5;
+	public static final int FIELD_RAW = 1 << 6;
+
+	private DoScanRecord() {
+	}
+
+	/**
+	 * 查找指定类型的AD段
+	 *
+	 * @return 该段数据部分在record中的起始位置，数据长度为record[返回值-2]-1；没有时返回-1
+	 */
+	public static int find(byte[] record, int type, int from) {
+		if (record == null) {
+			return -1;
+		}
+		int index = from;
+		while (index < record.length) {
+			int length = record[index] & 0xFF;
+			if (length == 0 || index + length >= record.length) {
+				return -1;
+			}
+			if ((record[index + 1] & 0xFF) == type) {
+				return index + 2;
+			}
+			index += length + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * 广播中是否包含指定的服务UUID(16、32或128位)
+	 */
+	public static boolean hasServiceUuid(byte[] record, UUID uuid) {
+		if (record == null) {
+			return false;
+		}
+		long msb = uuid.getMostSignificantBits();
+		long lsb = uuid.getLeastSignificantBits();
+		boolean isShort = lsb == BASE_UUID_LSB && (msb & 0xFFFFFFFFL) == BASE_UUID_MSB;
+		int shortUuid = (int) (msb >>> 32);
+		int index = 0;
+		while (index < record.length) {
+			int length = record[index] & 0xFF;
+			if (length == 0 || index + length >= record.length) {
+				return false;
+			}
+			int type = record[index + 1] & 0xFF;
+			int start = index + 2;
+			int end = index + 1 + length;
+			if (isShort && (type == TYPE_SERVICE_UUIDS_16_BIT_PARTIAL || type == TYPE_SERVICE_UUIDS_16_BIT_COMPLETE)) {
+				for (int i = start; i + 2 <= end; i += 2) {
+					if (readLittleEndian(record, i, 2) == shortUuid) {
+						return true;
+					}
+				}
+			} else if (isShort && (type == TYPE_SERVICE_UUIDS_32_BIT_PARTIAL || type == TYPE_SERVICE_UUIDS_32_BIT_COMPLETE)) {
+				for (int i = start; i + 4 <= end; i += 4) {
+					if (readLittleEndian(record, i, 4) == shortUuid) {
+						return true;
+					}
+				}
+			} else if (type == TYPE_SERVICE_UUIDS_128_BIT_PARTIAL || type == TYPE_SERVICE_UUIDS_128_BIT_COMPLETE) {
+				for (int i = start; i + 16 <= end; i += 16) {
+					if (readLittleEndianLong(record, i) == lsb && readLittleEndianLong(record, i + 8) == msb) {
+						return true;
+					}
+				}
+			}
+			index = end;
+		}
+		return false;
+	}
+
+	/**
+	 * 广播中是否包含指定厂商ID的厂商自定义数据
+	 */
+	public static boolean hasManufacturerId(byte[] record, int manufacturerId) {
+		int start = find(record, TYPE_MANUFACTURER_SPECIFIC_DATA, 0);
+		while (start >= 0) {
+			int dataLength = (record[start - 2] & 0xFF) - 1;
+			if (dataLength >= 2 && readLittleEndian(record, start, 2) == manufacturerId) {
+				return true;
+			}
+			start = find(record, TYPE_MANUFACTURER_SPECIFIC_DATA, start + dataLength);
+		}
+		return false;
+	}
+
+	/**
+	 * 广播中的设备名称，优先取完整名称，没有时返回null
+	 */
+	public static String getLocalName(byte[] record) {
+		int start = find(record, TYPE_LOCAL_NAME_COMPLETE, 0);
+		if (start < 0) {
+			start = find(record, TYPE_LOCAL_NAME_SHORT, 0);
+		}
+		if (start < 0) {
+			return null;
+		}
+		return new String(record, start, (record[start - 2] & 0xFF) - 1, UTF_8);
+	}
+
+	/**
+	 * 字段名转为FIELD_*，支持localName、serviceUUIDs、manufacturerData、txPower、serviceData、flags、scanRecord
+	 *
+	 * @return 无法识别时返回0
+	 */
+	public static int parseField(String name) {
+		if ("localName".equals(name)) {
+			return FIELD_LOCAL_NAME;
+		} else if ("serviceUUIDs".equals(name)) {
+			return FIELD_SERVICE_UUIDS;
+		} else if ("manufacturerData".equals(name)) {
+			return FIELD_MANUFACTURER_DATA;
+		} else if ("txPower".equals(name)) {
+			return FIELD_TX_POWER;
+		} else if ("serviceData".equals(name)) {
+			return FIELD_SERVICE_DATA;
+		} else if ("flags".equals(name)) {
+			return FIELD_FLAGS;
+		} else if ("scanRecord".equals(name)) {
+			return FIELD_RAW;
+		}
+		return 0;
+	}
+
+	/**
+	 * 一次遍历广播数据，只把fields中指定的字段写入out；二进制内容使用十六进制字符串表示
+	 */
+	public static void toJson(byte[] record, int fields, JSONObject out) throws JSONException {
+		if (record == null || fields == 0) {
+			return;
+		}
+		if ((fields & FIELD_RAW) != 0) {
+			out.put("scanRecord", DoHexCodec.encode(record));
+		}
+		JSONArray serviceUuids = null;
+		JSONArray manufacturerData = null;
+		JSONArray serviceData = null;
+		int index = 0;
+		while (index < record.length) {
+			int length = record[index] & 0xFF;
+			if (length == 0 || index + length >= record.length) {
+				break;
+			}
+			int type = record[index + 1] & 0xFF;
+			int start = index + 2;
+			int dataLength = length - 1;
+			switch (type) {
+			case TYPE_FLAGS:
+				if ((fields & FIELD_FLAGS) != 0 && dataLength >= 1) {
+					out.put("flags", record[start] & 0xFF);
+				}
+				break;
+			case TYPE_LOCAL_NAME_SHORT:
+			case TYPE_LOCAL_NAME_COMPLETE:
+				if ((fields & FIELD_LOCAL_NAME) != 0 && (type == TYPE_LOCAL_NAME_COMPLETE || !out.has("localName"))) {
+					out.put("localName", new String(record, start, dataLength, UTF_8));
+				}
+				break;
+			case TYPE_TX_POWER_LEVEL:
+				if ((fields & FIELD_TX_POWER) != 0 && dataLength >= 1) {
+					out.put("txPower", record[start]);
+				}
+				break;
+			case TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+			case TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+			case TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+			case TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+			case TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+			case TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+				if ((fields & FIELD_SERVICE_UUIDS) != 0) {
+					int uuidSize = uuidSize(type);
+					if (serviceUuids == null) {
+						serviceUuids = new JSONArray();
+					}
+					for (int i = start; i + uuidSize <= start + dataLength; i += uuidSize) {
+						serviceUuids.put(readUuid(record, i, uuidSize).toString());
+					}
+				}
+				break;
+			case TYPE_SERVICE_DATA_16_BIT:
+			case TYPE_SERVICE_DATA_32_BIT:
+			case TYPE_SERVICE_DATA_128_BIT:
+				if ((fields & FIELD_SERVICE_DATA) != 0) {
+					int uuidSize = type == TYPE_SERVICE_DATA_16_BIT ? 2 : type == TYPE_SERVICE_DATA_32_BIT ? 4 : 16;
+					if (dataLength >= uuidSize) {
+						if (serviceData == null) {
+							serviceData = new JSONArray();
+						}
+						JSONObject item = new JSONObject();
+						item.put("uuid", readUuid(record, start, uuidSize).toString());
+						item.put("data", DoHexCodec.encode(record, start + uuidSize, dataLength - uuidSize));
+						serviceData.put(item);
+					}
+				}
+				break;
+			case TYPE_MANUFACTURER_SPECIFIC_DATA:
+				if ((fields & FIELD_MANUFACTURER_DATA) != 0 && dataLength >= 2) {
+					if (manufacturerData == null) {
+						manufacturerData = new JSONArray();
+					}
+					JSONObject item = new JSONObject();
+					item.put("id", readLittleEndian(record, start, 2));
+					item.put("data", DoHexCodec.encode(record, start + 2, dataLength - 2));
+					manufacturerData.put(item);
+				}
+				break;
+			default:
+				break;
+			}
+			index += length + 1;
+		}
+		if (serviceUuids != null) {
+			out.put("serviceUUIDs", serviceUuids);
+		}
+		if (serviceData != null) {
+			out.put("serviceData", serviceData);
+		}
+		if (manufacturerData != null) {
+			out.put("manufacturerData", manufacturerData);
+		}
+	}
+
+	private static int uuidSize(int type) {
+		if (type == TYPE_SERVICE_UUIDS_16_BIT_PARTIAL || type == TYPE_SERVICE_UUIDS_16_BIT_COMPLETE) {
+			return 2;
+		}
+		if (type == TYPE_SERVICE_UUIDS_32_BIT_PARTIAL || type == TYPE_SERVICE_UUIDS_32_BIT_COMPLETE) {
+			return 4;
+		}
+		return 16;
+	}
+
+	// 16、32位UUID按蓝牙基础UUID展开
+	private static UUID readUuid(byte[] record, int offset, int size) {
+		if (size == 16) {
+			return new UUID(readLittleEndianLong(record, offset + 8), readLittleEndianLong(record, offset));
+		}
+		long shortUuid = readLittleEndian(record, offset, size) & 0xFFFFFFFFL;
+		return new UUID((shortUuid << 32) | BASE_UUID_MSB, BASE_UUID_LSB);
+	}
+
+	static int readLittleEndian(byte[] record, int offset, int size) {
+		int value = 0;
+		for (int i = size - 1; i >= 0; i--) {
+			value = (value << 8) | (record[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	static long readLittleEndianLong(byte[] record, int offset) {
+		long value = 0;
+		for (int i = 7; i >= 0; i--) {
+			value = (value << 8) | (record[offset + i] & 0xFFL);
+		}
+		return value;
+	}
+}
@@ -0,0 +1,73 @@
+package doext.bluetooth.le;
+
+import java.nio.charset.Charset;
+
+import android.util.Base64;
+
+/**
+ * 特征值转换为字符串的方式，二进制数据使用hex或base64可以无损地传给JS
+ */
+public final class DoValueEncoding {
+
+	public static final int HEX = 0;
+	public static final int BASE64 = 1;
+	public static final int UTF8 = 2;
+	public static final int GBK = 3;
+	// 无法识别的编码名称
+	public static final int UNKNOWN = -1;
+
+	private static final Charset CHARSET_UTF8 = Charset.forName("UTF-8");
+	private static final Charset CHARSET_GBK = Charset.forName("GBK");
+
+	private DoValueEncoding() {
+	}
+
+	/**
+	 * 解析编码名称，支持hex、base64、utf8(utf-8)、gbk，不区分大小写
+	 */
+	public static int parse(String name) {
+		if ("hex".equalsIgnoreCase(name)) {
+			return HEX;
+		}
+		if ("base64".equalsIgnoreCase(name)) {
+			return BASE64;
+		}
+		if ("utf8".equalsIgnoreCase(name) || "utf-8".equalsIgnoreCase(name)) {
+			return UTF8;
+		}
+		if ("gbk".equalsIgnoreCase(name)) {
+			return GBK;
+		}
+		return UNKNOWN;
+	}
+
+	public static String getName(int encoding) {
+		switch (encoding) {
+		case HEX:
+			return "hex";
+		case BASE64:
+			return "base64";
+		case GBK:
+			return "gbk";
+		default:
+			return "utf8";
+		}
+	}
+
+	public static String encode(byte[] data, int offset, int length, int encoding) {
+		switch (encoding) {
+		case HEX:
+			return DoHexCodec.encode(data, offset, length);
+		case BASE64:
+			return Base64.encodeToString(data, offset, length, Base64.NO_WRAP);
+		case GBK:
+			return new String(data, offset, length, CHARSET_GBK);
+		default:
+			return new String(data, offset, length, CHARSET_UTF8);
+		}
+	}
+
+	public static String encode(byte[] data, int encoding) {
+		return encode(data, 0, data.length, encoding);
+	}
+}
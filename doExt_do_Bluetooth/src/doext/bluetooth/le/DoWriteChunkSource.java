@@ -0,0 +1,96 @@
+package doext.bluetooth.le;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * 待写入数据的分包来源，数据只在创建时编码一次，保存在一个ByteBuffer中；
+ * 每次取分包时从该缓冲区切片到复用的分包数组，传输过程中不再产生新的对象。
+ *
+ * 注意：nextChunk返回的数组会被后续分包复用，只能在下一次调用nextChunk前使用，
+ * 调用方需要在此之前把数据交给writeCharacteristic。
+ */
+public class DoWriteChunkSource {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	// 复用的整包数组个数
+	private static final int POOL_SIZE = 2;
+
+	private final ByteBuffer buffer;
+	private final int chunkSize;
+	private final int totalSize;
+	private final byte[][] pool;
+	private int poolIndex;
+	private byte[] tail;
+
+	public DoWriteChunkSource(ByteBuffer buffer, int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize must be positive:" + chunkSize);
+		}
+		this.buffer = buffer;
+		this.chunkSize = chunkSize;
+		this.totalSize = buffer.remaining();
+		this.pool = new byte[Math.min(POOL_SIZE, (totalSize + chunkSize - 1) / chunkSize)][];
+	}
+
+	/**
+	 * 十六进制字符串表示的二进制数据
+	 *
+	 * @throws IllegalArgumentException
+	 *             hex不是合法的十六进制字符串
+	 */
+	public static DoWriteChunkSource fromHex(String hex, int chunkSize) {
+		return new DoWriteChunkSource(ByteBuffer.wrap(DoHexCodec.decode(hex)), chunkSize);
+	}
+
+	/**
+	 * 文本数据，按UTF-8编码后分包
+	 */
+	public static DoWriteChunkSource fromText(String text, int chunkSize) {
+		return new DoWriteChunkSource(ByteBuffer.wrap(text.getBytes(UTF_8)), chunkSize);
+	}
+
+	public boolean hasRemaining() {
+		return buffer.hasRemaining();
+	}
+
+	/**
+	 * 取下一个分包，没有剩余数据时返回null
+	 */
+	public byte[] nextChunk() {
+		int remaining = buffer.remaining();
+		if (remaining <= 0) {
+			return null;
+		}
+		byte[] chunk;
+		if (remaining >= chunkSize) {
+			chunk = pool[poolIndex];
+			if (chunk == null) {
+				chunk = new byte[chunkSize];
+				pool[poolIndex] = chunk;
+			}
+			poolIndex = (poolIndex + 1) % pool.length;
+		} else {
+			// 最后一个不足chunkSize的分包只会分配一次
+			if (tail == null) {
+				tail = new byte[remaining];
+			}
+			chunk = tail;
+		}
+		buffer.get(chunk, 0, chunk.length);
+		return chunk;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public int getTotalSize() {
+		return totalSize;
+	}
+
+	@Override
+	public String toString() {
+		return "DoWriteChunkSource[" + (totalSize - buffer.remaining()) + "/" + totalSize + "]";
+	}
+}
@@ -1,10 +1,20 @@
 package doext.implement;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.BroadcastReceiver;
@@ -14,7 +24,10 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import core.DoServiceContainer;
 import core.helper.DoJsonHelper;
@@ -24,7 +37,22 @@ import core.interfaces.DoIScriptEngine;
 import core.object.DoEventCenter;
 import core.object.DoInvokeResult;
 import doext.bluetooth.le.DoBluetoothLeService;
-import doext.bluetooth.le.DoBluetoothLeService.PendingWrite;
+import doext.bluetooth.le.DoBluetoothWorker;
+import doext.bluetooth.le.DoConnectBatch;
+import doext.bluetooth.le.DoConnectPipeline;
+import doext.bluetooth.le.DoFrameAssembler;
+import doext.bluetooth.le.DoGattConnection;
+import doext.bluetooth.le.DoGattOperation;
+import doext.bluetooth.le.DoHexCodec;
+import doext.bluetooth.le.DoLeScanner;
+import doext.bluetooth.le.DoNotificationBatcher;
+import doext.bluetooth.le.DoReconnectPolicy;
+import doext.bluetooth.le.DoScanDevice;
+import doext.bluetooth.le.DoScanDeviceTable;
+import doext.bluetooth.le.DoScanFilter;
+import doext.bluetooth.le.DoScanRecord;
+import doext.bluetooth.le.DoValueEncoding;
+import doext.bluetooth.le.DoWriteChunkSource;
 import doext.define.do_Bluetooth_MAbstract;
 
 /**
@@ -38,9 +66,57 @@ public class do_Bluetooth_Model extends do_Bluetooth_MAbstract implements DoActi
 
 	private static final String TAG = "do_Bluetooth";
 	private static final int REQUEST_ENABLE_BT = 1;
+	private static final int DEFAULT_CONNECT_CONCURRENCY = 2;
 	private Context mContext;
 	private BluetoothAdapter mBluetoothAdapter;
 	private DoBluetoothLeService mBluetoothLeService;
+	// 设备地址/特征UUID -> characteristicChanged事件中value的编码方式
+	private final Map<String, Integer> mValueEncodings = new ConcurrentHashMap<String, Integer>();
+	private final DoNotificationBatcher mNotificationBatcher;
+	private final DoScanDeviceTable mScanDeviceTable = new DoScanDeviceTable();
+	private DoLeScanner mLeScanner;
+	// 扫描结果、GATT事件的处理以及扫描超时、设备丢失检查都在工作线程上执行，只有fireEvent交给主线程
+	private final Handler mHandler = DoBluetoothWorker.getHandler();
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	// 本次扫描的统计，scanStopped事件中返回
+	private volatile boolean mScanning;
+	private long mScanStartTime;
+	private volatile int mScanResultCount;
+	private volatile int mScanEventCount;
+	private final Runnable mScanTimeoutTask = new Runnable() {
+		@Override
+		public void run() {
+			stopLeScan("timeout");
+		}
+	};
+	// 超过mLostTimeout没有广播的设备从设备表中移除，并触发deviceLost事件
+	private long mLostTimeout;
+	private final Runnable mLostCheckTask = new Runnable() {
+		@Override
+		public void run() {
+			long now = SystemClock.elapsedRealtime();
+			List<DoScanDevice> lostDevices = mScanDeviceTable.expire(now, mLostTimeout);
+			for (DoScanDevice scanDevice : lostDevices) {
+				JSONObject jsonNode = new JSONObject();
+				try {
+					jsonNode.put("address", scanDevice.getAddress());
+					jsonNode.put("name", scanDevice.getName());
+					jsonNode.put("lastSeen", now - scanDevice.getLastSeenTime());
+				} catch (Exception _err) {
+					DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model deviceLost event \n\t", _err);
+				}
+				fireOther("deviceLost", jsonNode);
+			}
+			mHandler.postDelayed(this, getLostCheckInterval());
+		}
+	};
+	// reportDelay大于0时为批量上报模式，本批次内扫描到的设备，每个设备只保留一条
+	private volatile boolean mScanBatchMode;
+	private final Map<String, DoScanDevice> mScanBatch = new LinkedHashMap<String, DoScanDevice>();
+	// scan事件中需要从广播数据解析的字段，DoScanRecord.FIELD_*的组合
+	private volatile int mScanFields;
+	// 特征UUID -> setReceive设置的分帧方式，key为空字符串时对所有特征生效
+	private final Map<String, Receiver> mReceivers = new ConcurrentHashMap<String, Receiver>();
 
 	public do_Bluetooth_Model() throws Exception {
 		super();
@@ -51,6 +127,7 @@ public class do_Bluetooth_Model extends do_Bluetooth_MAbstract implements DoActi
 		final BluetoothManager bluetoothManager = (BluetoothManager) mContext.getSystemService(Context.BLUETOOTH_SERVICE);
 		mBluetoothAdapter = bluetoothManager.getAdapter();
 		((DoIPageView) mContext).registActivityResultListener(this);
+		mNotificationBatcher = new DoNotificationBatcher(mHandler, mBatchListener);
 
 	}
 
@@ -64,6 +141,7 @@ public class do_Bluetooth_Model extends do_Bluetooth_MAbstract implements DoActi
 				Log.e(TAG, "Unable to initialize Bluetooth");
 				return;
 			}
+			mBluetoothLeService.setOnGattEventListener(mGattEventListener);
 		}
 
 		@Override
@@ -76,41 +154,193 @@ public class do_Bluetooth_Model extends do_Bluetooth_MAbstract implements DoActi
 	// ACTION_GATT_CONNECTED: connected to a GATT server.
 	// ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
 	// ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-	// ACTION_DATA_AVAILABLE: received data from the device. This can be a
-	// result of read
-	// or notification operations.
+	// onDataAvailable: received data from the device. This can be a result of
+	// read or notification operations.
+	private final DoBluetoothLeService.OnGattEventListener mGattEventListener = new DoBluetoothLeService.OnGattEventListener() {
+		@Override
+		public void onGattEvent(String address, String action) {
+			if (DoBluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
+
+			} else if (DoBluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action) || DoBluetoothLeService.ACTION_GATT_CONNECT_TIMEOUT.equals(action) || DoBluetoothLeService.ACTION_GATT_DISCOVERY_TIMEOUT.equals(action)) {
+				// 断开后丢弃该设备未拼完的帧
+				for (Receiver receiver : mReceivers.values()) {
+					receiver.reset(address);
+				}
+				int error = 0;
+				if (DoBluetoothLeService.ACTION_GATT_CONNECT_TIMEOUT.equals(action)) {
+					error = DoBluetoothLeService.ERROR_CONNECT_TIMEOUT;
+				} else if (DoBluetoothLeService.ACTION_GATT_DISCOVERY_TIMEOUT.equals(action)) {
+					error = DoBluetoothLeService.ERROR_DISCOVERY_TIMEOUT;
+				}
+				fireconnectionStateChange(BluetoothProfile.STATE_DISCONNECTED);
+				fireDeviceConnectionStateChange(address, BluetoothProfile.STATE_DISCONNECTED, error);
+			} else if (DoBluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
+				fireConnectionReady(address);
+			} else if (DoBluetoothLeService.ACTION_GATT_RECONNECT_FAILED.equals(action)) {
+				JSONObject jsonNode = new JSONObject();
+				try {
+					jsonNode.put("address", address);
+				} catch (Exception _err) {
+					DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model reconnectFailed event \n\t", _err);
+				}
+				fireOther("reconnectFailed", jsonNode);
+			}
+		}
+
+		@Override
+		public void onReconnecting(String address, int attempt, long delay, boolean autoConnect) {
+			JSONObject jsonNode = new JSONObject();
+			try {
+				jsonNode.put("address", address);
+				jsonNode.put("attempt", attempt);
+				jsonNode.put("delay", delay);
+				jsonNode.put("autoConnect", autoConnect);
+			} catch (Exception _err) {
+				DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model reconnecting event \n\t", _err);
+			}
+			fireOther("reconnecting", jsonNode);
+		}
+
+		@Override
+		public void onStateChange(String address, int from, int to, long time, long duration) {
+			JSONObject jsonNode = new JSONObject();
+			try {
+				jsonNode.put("address", address);
+				jsonNode.put("from", DoGattConnection.getStateName(from));
+				jsonNode.put("to", DoGattConnection.getStateName(to));
+				jsonNode.put("time", time);
+				jsonNode.put("duration", duration);
+			} catch (Exception _err) {
+				DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model stateChange event \n\t", _err);
+			}
+			fireOther("stateChange", jsonNode);
+		}
+
+		@Override
+		public void onDataAvailable(String address, BluetoothGattCharacteristic characteristic, byte[] data) {
+			String uuid = characteristic.getUuid().toString();
+			Receiver receiver = mReceivers.get(uuid);
+			if (receiver == null) {
+				receiver = mReceivers.get("");
+			}
+			if (receiver != null) {
+				receiver.append(address, uuid, data);
+				return;
+			}
+			if (mNotificationBatcher.offer(address, uuid, data)) {
+				return;
+			}
+			int encoding = getValueEncoding(address, uuid);
+			// fire
+			JSONObject jsonNode = new JSONObject();
+			try {
+				jsonNode.put("address", address);
+				jsonNode.put("uuid", uuid);
+				jsonNode.put("value", DoValueEncoding.encode(data, encoding));
+				jsonNode.put("encoding", DoValueEncoding.getName(encoding));
+			} catch (Exception e) {
+				DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model characteristicChanged \n\t", e);
+			}
+			fireOther("characteristicChanged", jsonNode);
+		}
+
+		@Override
+		public void onSubscriptionRestored(String address, String sUUID, String cUUID, int encoding) {
+			// 进程重启后只能从快照中得到订阅时的编码
+			if (encoding != DoValueEncoding.UNKNOWN) {
+				mValueEncodings.put(address + "/" + cUUID.toLowerCase(Locale.US), encoding);
+			}
+		}
+	};
+
+	// 合并后的通知，value数组中每项包含value和time
+	private final DoNotificationBatcher.OnBatchListener mBatchListener = new DoNotificationBatcher.OnBatchListener() {
+		@Override
+		public void onBatch(String address, String uuid, byte[][] values, long[] times, int count) {
+			int encoding = getValueEncoding(address, uuid);
+			JSONObject jsonNode = new JSONObject();
+			try {
+				JSONArray jsonValues = new JSONArray();
+				for (int i = 0; i < count; i++) {
+					JSONObject jsonValue = new JSONObject();
+					jsonValue.put("value", DoValueEncoding.encode(values[i], encoding));
+					jsonValue.put("time", times[i]);
+					jsonValues.put(jsonValue);
+				}
+				jsonNode.put("address", address);
+				jsonNode.put("uuid", uuid);
+				jsonNode.put("encoding", DoValueEncoding.getName(encoding));
+				jsonNode.put("values", jsonValues);
+			} catch (Exception e) {
+				DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model characteristicChanged batch \n\t", e);
+			}
+			fireOther("characteristicChanged", jsonNode);
+		}
+	};
+
+	// setReceive设置的接收方式，每个设备分别拼帧，凑满一帧后触发receive事件
+	private class Receiver {
+		private final DoFrameAssembler prototype;
+		private final Map<String, DoFrameAssembler> assemblers = new ConcurrentHashMap<String, DoFrameAssembler>();
+		private final int encoding;
+		private final String type;
+
+		Receiver(DoFrameAssembler prototype, int encoding, String type) {
+			this.prototype = prototype;
+			this.encoding = encoding;
+			this.type = type;
+		}
+
+		void append(final String address, final String uuid, byte[] data) {
+			DoFrameAssembler assembler = assemblers.get(address);
+			if (assembler == null) {
+				assembler = prototype.copy();
+				assemblers.put(address, assembler);
+			}
+			assembler.append(data, new DoFrameAssembler.OnFrameListener() {
+				@Override
+				public void onFrame(byte[] frame) {
+					JSONObject jsonNode = new JSONObject();
+					try {
+						jsonNode.put("address", address);
+						jsonNode.put("uuid", uuid);
+						jsonNode.put("type", type);
+						jsonNode.put("content", DoValueEncoding.encode(frame, encoding));
+					} catch (Exception e) {
+						DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model receive \n\t", e);
+					}
+					fireOther("receive", jsonNode);
+				}
+			});
+		}
+
+		void reset(String address) {
+			assemblers.remove(address);
+		}
+	}
+
+	// 与合并通知、拼帧一样按设备区分，多个设备的同一特征可以使用不同的编码
+	private int getValueEncoding(String address, String uuid) {
+		Integer encoding = mValueEncodings.get(address + "/" + uuid);
+		return encoding == null ? DoValueEncoding.UTF8 : encoding;
+	}
+
+	// Handles bluetooth adapter state changes on the worker thread, GATT
+	// events are delivered directly through mGattEventListener.
 	private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
 		@Override
 		public void onReceive(Context context, Intent intent) {
-			final String action = intent.getAction();
 			int blueState = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, 0);
 			if (blueState == BluetoothAdapter.STATE_OFF) {
 				// 手动关闭蓝牙
 				mBluetoothLeService.close();
 				mContext.unbindService(mServiceConnection);
 				fireconnectionStateChange(0);
+				fireAdapterStateChange(0);
 			}
 			if (blueState == BluetoothAdapter.STATE_ON) {
 				fireconnectionStateChange(1);
-			}
-			if (DoBluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
-
-			} else if (DoBluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
-				fireconnectionStateChange(BluetoothProfile.STATE_DISCONNECTED);
-			} else if (DoBluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-				fireconnectionStateChange(1);
-			} else if (DoBluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-				String data = intent.getStringExtra(DoBluetoothLeService.EXTRA_DATA);
-				String uuid = intent.getStringExtra(DoBluetoothLeService.CHARACTERISTIC_UUID);
-				// fire
-				JSONObject jsonNode = new JSONObject();
-				try {
-					jsonNode.put("uuid", uuid);
-					jsonNode.put("value", data);
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-				fireOther("characteristicChanged", jsonNode);
+				fireAdapterStateChange(1);
 			}
 		}
 	};
@@ -137,6 +367,15 @@ public class do_Bluetooth_Model extends do_Bluetooth_MAbstract implements DoActi
 		} else if ("stopScan".equals(_methodName)) {
 			stopScan(_dictParas, _scriptEngine, _invokeResult);
 			return true;
+		} else if ("setReceive".equals(_methodName)) {
+			setReceive(_dictParas, _scriptEngine, _invokeResult);
+			return true;
+		} else if ("getDevices".equals(_methodName)) {
+			getDevices(_dictParas, _scriptEngine, _invokeResult);
+			return true;
+		} else if ("disconnect".equals(_methodName)) {
+			disconnect(_dictParas, _scriptEngine, _invokeResult);
+			return true;
 		}
 		return super.invokeSyncMethod(_methodName, _dictParas, _scriptEngine, _invokeResult);
 	}
@@ -155,6 +394,14 @@ public class do_Bluetooth_Model extends do_Bluetooth_MAbstract implements DoActi
 			this.connect(_dictParas, _scriptEngine, _callbackFuncName);
 			return true;
 		}
+		if ("connectMany".equals(_methodName)) {
+			this.connectMany(_dictParas, _scriptEngine, _callbackFuncName);
+			return true;
+		}
+		if ("connectAndSubscribe".equals(_methodName)) {
+			this.connectAndSubscribe(_dictParas, _scriptEngine, _callbackFuncName);
+			return true;
+		}
 		if ("write".equals(_methodName)) {
 			this.write(_dictParas, _scriptEngine, _callbackFuncName);
 			return true;
@@ -170,51 +417,153 @@ public class do_Bluetooth_Model extends do_Bluetooth_MAbstract implements DoActi
 		return super.invokeAsyncMethod(_methodName, _dictParas, _scriptEngine, _callbackFuncName);
 	}
 
-	private void fireconnectionStateChange(int result) {
-		DoEventCenter eventCenter = getEventCenter();
-		if (eventCenter != null) {
-			DoInvokeResult _invokeResult = new DoInvokeResult(getUniqueKey());
-			_invokeResult.setResultInteger(result);
-			eventCenter.fireEvent("connectionStateChange", _invokeResult);
+	// 蓝牙开关变化，关闭时每个连接另外触发deviceConnectionStateChange
+	private void fireAdapterStateChange(int state) {
+		JSONObject jsonNode = new JSONObject();
+		try {
+			jsonNode.put("state", state);
+		} catch (Exception _err) {
+			DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model adapterStateChange event \n\t", _err);
 		}
+		fireOther("adapterStateChange", jsonNode);
+	}
+
+	// 兼容原有的connectionStateChange事件，只有整数状态：0断开，1连接就绪；不区分设备
+	private void fireconnectionStateChange(int state) {
+		DoInvokeResult _invokeResult = new DoInvokeResult(getUniqueKey());
+		_invokeResult.setResultInteger(state);
+		fireEvent("connectionStateChange", _invokeResult);
+	}
+
+	// 区分设备的连接状态{address, state, error}，error：4连接超时，5服务发现超时，0表示没有错误
+	private void fireDeviceConnectionStateChange(String address, int state, int error) {
+		JSONObject jsonNode = new JSONObject();
+		try {
+			jsonNode.put("address", address);
+			jsonNode.put("state", state);
+			if (error != 0) {
+				jsonNode.put("error", error);
+			}
+		} catch (Exception _err) {
+			DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model deviceConnectionStateChange event \n\t", _err);
+		}
+		fireOther("deviceConnectionStateChange", jsonNode);
+	}
+
+	// 可以读写时触发，附带连接耗时、GATT结构是否与上次一致以及自动恢复的订阅数
+	private void fireConnectionReady(String address) {
+		DoGattConnection connection = mBluetoothLeService == null ? null : mBluetoothLeService.getConnection(address);
+		JSONObject jsonNode = new JSONObject();
+		try {
+			jsonNode.put("address", address);
+			jsonNode.put("state", 1);
+			if (connection != null) {
+				jsonNode.put("elapsed", connection.getConnectElapsed());
+				jsonNode.put("layoutMatched", connection.isLayoutMatched());
+				jsonNode.put("restored", connection.getRestoredSubscriptions());
+			}
+		} catch (Exception _err) {
+			DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model deviceConnectionStateChange event \n\t", _err);
+		}
+		fireconnectionStateChange(1);
+		fireOther("deviceConnectionStateChange", jsonNode);
+		if (connection == null || connection.getReconnectAttempts() == 0) {
+			return;
+		}
+		JSONObject jsonReconnected = new JSONObject();
+		try {
+			jsonReconnected.put("address", address);
+			jsonReconnected.put("attempts", connection.getReconnectAttempts());
+			jsonReconnected.put("elapsed", connection.getReconnectElapsed());
+		} catch (Exception _err) {
+			DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model reconnected event \n\t", _err);
+		}
+		fireOther("reconnected", jsonReconnected);
 	}
 
 	private void fireOther(String eventName, JSONObject jsonObject) {
-		DoEventCenter eventCenter = getEventCenter();
+		DoInvokeResult _invokeResult = new DoInvokeResult(getUniqueKey());
+		_invokeResult.setResultNode(jsonObject);
+		fireEvent(eventName, _invokeResult);
+	}
+
+	// 事件参数在调用线程上构造好，只把fireEvent交给主线程
+	private void fireEvent(final String eventName, final DoInvokeResult _invokeResult) {
+		final DoEventCenter eventCenter = getEventCenter();
 		if (eventCenter != null) {
-			DoInvokeResult _invokeResult = new DoInvokeResult(getUniqueKey());
-			_invokeResult.setResultNode(jsonObject);
-			eventCenter.fireEvent(eventName, _invokeResult);
+			mMainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					eventCenter.fireEvent(eventName, _invokeResult);
+				}
+			});
 		}
 	}
 
 	// Device scan callback.
-	private BluetoothAdapter.LeScanCallback mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
+	private final DoLeScanner.OnScanListener mScanListener = new DoLeScanner.OnScanListener() {
 		@Override
-		public void onLeScan(final BluetoothDevice device, final int rssi, byte[] scanRecord) {
-			((Activity) mContext).runOnUiThread(new Runnable() {
-				@Override
-				public void run() {
-					if (device == null) {
+		public void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
+			// 停止扫描前已经进入队列的结果不再上报
+			if (!mScanning) {
+				return;
+			}
+			if (mScanBatchMode) {
+				// 与停止扫描时取出最后一批互斥，计入设备表的结果一定会出现在某个scanBatch事件中
+				synchronized (mScanBatch) {
+					if (!mScanning) {
 						return;
 					}
-					// fire
-					JSONObject jsonNode = new JSONObject();
-					try {
-						jsonNode.put("address", device.getAddress());
-						if (null == device.getName())
-							jsonNode.put("name", "");
-						else
-							jsonNode.put("name", device.getName());
-						jsonNode.put("RSSI", rssi);
-					} catch (Exception _err) {
-						DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model scan event \n\t", _err);
-					}
-					fireOther("scan", jsonNode);
+					mScanDeviceTable.update(device.getAddress(), device.getName(), rssi, scanRecord, SystemClock.elapsedRealtime());
+					mScanResultCount++;
+					mScanBatch.put(device.getAddress(), mScanDeviceTable.get(device.getAddress()));
 				}
-			});
+				return;
+			}
+			// 重复的广播在这里过滤掉，只有需要上报的设备才构造事件
+			DoScanDevice scanDevice = mScanDeviceTable.update(device.getAddress(), device.getName(), rssi, scanRecord, SystemClock.elapsedRealtime());
+			mScanResultCount++;
+			if (scanDevice == null) {
+				return;
+			}
+			mScanEventCount++;
+			// fire
+			JSONObject jsonNode = new JSONObject();
+			try {
+				putScanDevice(jsonNode, scanDevice);
+			} catch (Exception _err) {
+				DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model scan event \n\t", _err);
+			}
+			fireOther("scan", jsonNode);
+		}
+
+		@Override
+		public void onBatchEnd() {
+			JSONArray jsonDevices;
+			synchronized (mScanBatch) {
+				// 停止扫描时已经取出最后一批
+				if (!mScanning) {
+					return;
+				}
+				jsonDevices = takeScanBatch();
+			}
+			fireScanBatch(jsonDevices);
+		}
+
+		@Override
+		public void onScanFailed(int errorCode) {
+			// 重置扫描状态，停止扫描时长和丢失检查的定时任务
+			stopLeScan("failed", errorCode);
 		}
 	};
+
+	private void putScanDevice(JSONObject jsonNode, DoScanDevice scanDevice) throws Exception {
+		jsonNode.put("address", scanDevice.getAddress());
+		jsonNode.put("name", scanDevice.getName());
+		jsonNode.put("RSSI", scanDevice.getSmoothedRssi());
+		DoScanRecord.toJson(scanDevice.getScanRecord(), mScanFields, jsonNode);
+	}
+
 	private boolean isBind = false;
 
 	/**
@@ -251,28 +600,215 @@ public class do_Bluetooth_Model extends do_Bluetooth_MAbstract implements DoActi
 			((Activity) mContext).startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
 		} else {
 			callBack(0, _scriptEngine, _callbackFuncName);
-			mContext.registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+			mContext.registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter(), null, mHandler);
 			Intent gattServiceIntent = new Intent(mContext, DoBluetoothLeService.class);
 			isBind = mContext.bindService(gattServiceIntent, mServiceConnection, Context.BIND_AUTO_CREATE);
 		}
 	}
 
 	private void callBack(Object object, DoIScriptEngine _scriptEngine, String _callbackFuncName) {
+		_scriptEngine.callback(_callbackFuncName, newInvokeResult(object));
+	}
+
+	// 回调与fireOther经过同一个主线程Handler，保证先触发的事件先于回调到达JS
+	private void callBackAfterEvents(Object object, final DoIScriptEngine _scriptEngine, final String _callbackFuncName) {
+		final DoInvokeResult _invokeResult = newInvokeResult(object);
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				_scriptEngine.callback(_callbackFuncName, _invokeResult);
+			}
+		});
+	}
+
+	private DoInvokeResult newInvokeResult(Object object) {
 		DoInvokeResult _invokeResult = new DoInvokeResult(getUniqueKey());
 		if (object instanceof Boolean) {
 			_invokeResult.setResultBoolean((Boolean) object);
+		} else if (object instanceof JSONObject) {
+			_invokeResult.setResultNode((JSONObject) object);
 		} else {
 			_invokeResult.setResultInteger((Integer) object);
 		}
-		_scriptEngine.callback(_callbackFuncName, _invokeResult);
+		return _invokeResult;
 	}
 
 	public void startScan(JSONObject _dictParas, DoIScriptEngine _scriptEngine, String _callbackFuncName) throws Exception {
-		callBack(mBluetoothAdapter.startLeScan(mLeScanCallback), _scriptEngine, _callbackFuncName);
+		// 同一设备的RSSI变化超过rssiThreshold(dBm)或距上次上报超过reportInterval(毫秒)时才再次触发scan事件
+		int rssiThreshold = DoJsonHelper.getInt(_dictParas, "rssiThreshold", DoScanDeviceTable.DEFAULT_RSSI_THRESHOLD);
+		int reportInterval = DoJsonHelper.getInt(_dictParas, "reportInterval", 0);
+		mScanDeviceTable.clear();
+		mScanDeviceTable.configure(rssiThreshold, reportInterval);
+		// 设备表最多记录maxDevices个设备，超过lostTimeout(毫秒)没有广播的设备触发deviceLost事件，不大于0时不检查
+		mScanDeviceTable.setMaxSize(DoJsonHelper.getInt(_dictParas, "maxDevices", DoScanDeviceTable.DEFAULT_MAX_SIZE));
+		int lostTimeout = DoJsonHelper.getInt(_dictParas, "lostTimeout", 0);
+		// 过滤条件：serviceUUIDs(数组，满足其一即可)、namePrefix、address、manufacturerId，条件之间需同时满足
+		DoScanFilter filter = new DoScanFilter();
+		try {
+			JSONArray serviceUUIDs = _dictParas.optJSONArray("serviceUUIDs");
+			if (serviceUUIDs != null) {
+				for (int i = 0; i < serviceUUIDs.length(); i++) {
+					filter.addServiceUuid(serviceUUIDs.getString(i));
+				}
+			}
+			filter.setAddress(DoJsonHelper.getString(_dictParas, "address", ""));
+			filter.setManufacturerId(DoJsonHelper.getInt(_dictParas, "manufacturerId", DoScanFilter.NO_MANUFACTURER_ID));
+		} catch (IllegalArgumentException _err) {
+			DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model startScan filter \n\t", _err);
+			callBack(false, _scriptEngine, _callbackFuncName);
+			return;
+		}
+		filter.setNamePrefix(DoJsonHelper.getString(_dictParas, "namePrefix", ""));
+		if (mLeScanner == null) {
+			mLeScanner = DoLeScanner.create(mBluetoothAdapter, mScanListener);
+		}
+		stopLeScan(null);
+		// lowPower、balanced、lowLatency、opportunistic，Android 5.0以下忽略
+		int scanMode = DoLeScanner.parseScanMode(DoJsonHelper.getString(_dictParas, "scanMode", ""), DoLeScanner.SCAN_MODE_LOW_LATENCY);
+		// 扫描时长(毫秒)，到期后自动停止扫描并触发scanStopped事件，不大于0时需要调用stopScan
+		int duration = DoJsonHelper.getInt(_dictParas, "duration", 0);
+		// reportDelay(毫秒)大于0时不再逐个触发scan事件，改为每个周期触发一次scanBatch事件
+		int reportDelay = DoJsonHelper.getInt(_dictParas, "reportDelay", 0);
+		// 需要从广播数据中解析的字段，可选localName、serviceUUIDs、manufacturerData、txPower、serviceData、flags、scanRecord
+		int scanFields = 0;
+		JSONArray fields = _dictParas.optJSONArray("fields");
+		if (fields != null) {
+			for (int i = 0; i < fields.length(); i++) {
+				scanFields |= DoScanRecord.parseField(fields.optString(i));
+			}
+		}
+		mScanFields = scanFields;
+		synchronized (mScanBatch) {
+			mScanBatch.clear();
+		}
+		mScanBatchMode = reportDelay > 0;
+		mScanResultCount = 0;
+		mScanEventCount = 0;
+		mScanStartTime = SystemClock.elapsedRealtime();
+		mScanning = mLeScanner.start(filter, reportDelay, scanMode);
+		if (mScanning && duration > 0) {
+			mHandler.postDelayed(mScanTimeoutTask, duration);
+		}
+		mLostTimeout = lostTimeout;
+		if (mScanning && lostTimeout > 0) {
+			mHandler.postDelayed(mLostCheckTask, getLostCheckInterval());
+		}
+		callBack(mScanning, _scriptEngine, _callbackFuncName);
+	}
+
+	// 取出本批次的设备并清空，调用时需要持有mScanBatch的锁
+	private JSONArray takeScanBatch() {
+		JSONArray jsonDevices = new JSONArray();
+		try {
+			for (DoScanDevice scanDevice : mScanBatch.values()) {
+				JSONObject jsonNode = new JSONObject();
+				putScanDevice(jsonNode, scanDevice);
+				jsonDevices.put(jsonNode);
+			}
+		} catch (Exception _err) {
+			DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model scanBatch event \n\t", _err);
+		}
+		mScanBatch.clear();
+		return jsonDevices;
+	}
+
+	private void fireScanBatch(JSONArray jsonDevices) {
+		if (jsonDevices.length() == 0) {
+			return;
+		}
+		mScanEventCount++;
+		JSONObject jsonNode = new JSONObject();
+		try {
+			jsonNode.put("devices", jsonDevices);
+		} catch (Exception _err) {
+			DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model scanBatch event \n\t", _err);
+		}
+		fireOther("scanBatch", jsonNode);
+	}
+
+	// 检查间隔取超时时间的一半，最短1秒
+	private long getLostCheckInterval() {
+		return Math.max(mLostTimeout / 2, 1000);
+	}
+
+	/**
+	 * 获取设备表中记录的设备，最近广播的在前；
+	 * 
+	 * @_dictParas 参数（K,V），可以通过此对象提供相关方法来获取参数值（Key：为参数名称）；
+	 * @_scriptEngine 当前Page JS上下文环境对象
+	 * @_invokeResult 用于返回方法结果对象
+	 */
+	public void getDevices(JSONObject _dictParas, DoIScriptEngine _scriptEngine, DoInvokeResult _invokeResult) throws Exception {
+		long now = SystemClock.elapsedRealtime();
+		JSONArray jsonDevices = new JSONArray();
+		for (DoScanDevice scanDevice : mScanDeviceTable.snapshot()) {
+			JSONObject jsonNode = new JSONObject();
+			jsonNode.put("address", scanDevice.getAddress());
+			jsonNode.put("name", scanDevice.getName());
+			jsonNode.put("RSSI", scanDevice.getSmoothedRssi());
+			jsonNode.put("lastSeen", now - scanDevice.getLastSeenTime());
+			jsonNode.put("count", scanDevice.getAdvertisementCount());
+			jsonDevices.put(jsonNode);
+		}
+		_invokeResult.setResultArray(jsonDevices);
 	}
 
 	public void stopScan(JSONObject _dictParas, DoIScriptEngine _scriptEngine, DoInvokeResult _invokeResult) throws Exception {
-		mBluetoothAdapter.stopLeScan(mLeScanCallback);
+		stopLeScan("stopped");
+	}
+
+	private void stopLeScan(String reason) {
+		stopLeScan(reason, 0);
+	}
+
+	/**
+	 * 停止扫描，reason不为null且正在扫描时触发scanStopped事件
+	 * 
+	 * @param reason
+	 *            timeout：扫描时长到期；stopped：调用stopScan；connect：开始连接设备；failed：系统无法开始扫描
+	 * @param errorCode
+	 *            reason为failed时系统返回的错误码，在scanStopped事件中返回
+	 */
+	private synchronized void stopLeScan(String reason, int errorCode) {
+		mHandler.removeCallbacks(mScanTimeoutTask);
+		mHandler.removeCallbacks(mLostCheckTask);
+		if (mLeScanner == null) {
+			return;
+		}
+		// 批量上报时先让控制器交出缓存的结果，停止后再把未满一个周期的结果作为最后一批上报
+		if (mScanning && mScanBatchMode && errorCode == 0) {
+			mLeScanner.flush();
+		}
+		mLeScanner.stop();
+		boolean wasScanning;
+		JSONArray lastBatch = null;
+		synchronized (mScanBatch) {
+			wasScanning = mScanning;
+			if (wasScanning && mScanBatchMode) {
+				lastBatch = takeScanBatch();
+			}
+			mScanning = false;
+		}
+		if (lastBatch != null) {
+			fireScanBatch(lastBatch);
+		}
+		if (!wasScanning || reason == null) {
+			return;
+		}
+		JSONObject jsonNode = new JSONObject();
+		try {
+			jsonNode.put("reason", reason);
+			if (errorCode != 0) {
+				jsonNode.put("errorCode", errorCode);
+			}
+			jsonNode.put("duration", SystemClock.elapsedRealtime() - mScanStartTime);
+			jsonNode.put("devices", mScanDeviceTable.size());
+			jsonNode.put("results", mScanResultCount);
+			jsonNode.put("events", mScanEventCount);
+		} catch (Exception _err) {
+			DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model scanStopped event \n\t", _err);
+		}
+		fireOther("scanStopped", jsonNode);
 	}
 
 	/**
@@ -287,6 +823,8 @@ public class do_Bluetooth_Model extends do_Bluetooth_MAbstract implements DoActi
 			mContext.unregisterReceiver(mGattUpdateReceiver);
 		}
 
+		stopLeScan(null);
+		mNotificationBatcher.clear();
 		if (mBluetoothLeService != null) {
 			mBluetoothLeService.disconnect();
 			mBluetoothLeService.close();
@@ -334,11 +872,15 @@ public class do_Bluetooth_Model extends do_Bluetooth_MAbstract implements DoActi
 	 * @_callbackFuncName 回调函数名
 	 */
 	public void connect(JSONObject _dictParas, DoIScriptEngine _scriptEngine, String _callbackFuncName) throws Exception {
-		mBluetoothAdapter.stopLeScan(mLeScanCallback);
+		stopLeScan("connect");
 		String mDeviceAddress = DoJsonHelper.getString(_dictParas, "address", "");
 		if (mBluetoothLeService != null) {
+			// 设备的GATT结构快照保存在应用的缓存目录下，重连时用来恢复订阅
+			mBluetoothLeService.setLayoutCacheDir(_scriptEngine.getCurrentApp().getDataFS().getPathSysCache() + File.separator + "do_Bluetooth");
+			// 连接超时、服务发现超时(毫秒)，超时后释放连接并在deviceConnectionStateChange事件中返回错误码4、5，不大于0时不限制
+			mBluetoothLeService.setTimeouts(DoJsonHelper.getInt(_dictParas, "connectTimeout", (int) DoBluetoothLeService.DEFAULT_CONNECT_TIMEOUT), DoJsonHelper.getInt(_dictParas, "discoveryTimeout", (int) DoBluetoothLeService.DEFAULT_DISCOVERY_TIMEOUT));
 			// 需要放到主线程中执行
-			boolean result = mBluetoothLeService.connect(mDeviceAddress);
+			boolean result = mBluetoothLeService.connect(mDeviceAddress, getReconnectPolicy(_dictParas));
 			callBack(result, _scriptEngine, _callbackFuncName);
 			if (!result) {
 				DoServiceContainer.getLogEngine().writeInfo("连接失败，address:" + mDeviceAddress, TAG);
@@ -347,14 +889,186 @@ public class do_Bluetooth_Model extends do_Bluetooth_MAbstract implements DoActi
 		}
 	}
 
+	// 意外断开后的重连策略{maxAttempts, initialDelay, maxDelay, autoConnect}，不设置时不自动重连
+	private DoReconnectPolicy getReconnectPolicy(JSONObject _dictParas) {
+		JSONObject reconnect = _dictParas.optJSONObject("reconnect");
+		if (reconnect == null) {
+			return null;
+		}
+		return new DoReconnectPolicy(DoJsonHelper.getInt(reconnect, "maxAttempts", DoReconnectPolicy.DEFAULT_MAX_ATTEMPTS), DoJsonHelper.getInt(reconnect, "initialDelay", (int) DoReconnectPolicy.DEFAULT_INITIAL_DELAY), DoJsonHelper.getInt(reconnect, "maxDelay", (int) DoReconnectPolicy.DEFAULT_MAX_DELAY), DoJsonHelper.getBoolean(reconnect, "autoConnect", false));
+	}
+
+	/**
+	 * 批量连接外围设备，同时最多concurrency个设备处于连接、服务发现阶段；
+	 * 每个设备得到结果时触发connectResult事件，全部结束后回调汇总{total, succeeded, failed, elapsed}
+	 * 
+	 * @_dictParas 参数（K,V），可以通过此对象提供相关方法来获取参数值（Key：为参数名称）；
+	 * @_scriptEngine 当前Page JS上下文环境对象
+	 * @_callbackFuncName 回调函数名
+	 */
+	public void connectMany(JSONObject _dictParas, final DoIScriptEngine _scriptEngine, final String _callbackFuncName) throws Exception {
+		stopLeScan("connect");
+		final List<String> addresses = new ArrayList<String>();
+		JSONArray jsonAddresses = _dictParas.optJSONArray("addresses");
+		if (jsonAddresses != null) {
+			for (int i = 0; i < jsonAddresses.length(); i++) {
+				String address = jsonAddresses.optString(i);
+				if (address.length() > 0 && !addresses.contains(address)) {
+					addresses.add(address);
+				}
+			}
+		}
+		if (mBluetoothLeService == null || addresses.isEmpty()) {
+			callBack(connectManySummary(addresses.size(), 0, addresses.size(), 0), _scriptEngine, _callbackFuncName);
+			return;
+		}
+		mBluetoothLeService.setLayoutCacheDir(_scriptEngine.getCurrentApp().getDataFS().getPathSysCache() + File.separator + "do_Bluetooth");
+		mBluetoothLeService.setTimeouts(DoJsonHelper.getInt(_dictParas, "connectTimeout", (int) DoBluetoothLeService.DEFAULT_CONNECT_TIMEOUT), DoJsonHelper.getInt(_dictParas, "discoveryTimeout", (int) DoBluetoothLeService.DEFAULT_DISCOVERY_TIMEOUT));
+		// 多数手机同时建立多个连接时容易失败，默认一次连接2个，最多不超过控制器的连接数上限
+		int concurrency = DoJsonHelper.getInt(_dictParas, "concurrency", DEFAULT_CONNECT_CONCURRENCY);
+		mBluetoothLeService.connectMany(addresses, concurrency, getReconnectPolicy(_dictParas), new DoConnectBatch.OnConnectBatchListener() {
+			@Override
+			public void onDeviceResult(String address, int result, long elapsed) {
+				JSONObject jsonNode = new JSONObject();
+				try {
+					jsonNode.put("address", address);
+					jsonNode.put("result", result);
+					jsonNode.put("elapsed", elapsed);
+				} catch (Exception _err) {
+					DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model connectResult event \n\t", _err);
+				}
+				fireOther("connectResult", jsonNode);
+			}
+
+			@Override
+			public void onFinish(int succeeded, int failed, long elapsed) {
+				callBackAfterEvents(connectManySummary(addresses.size(), succeeded, failed, elapsed), _scriptEngine, _callbackFuncName);
+			}
+		});
+	}
+
+	private JSONObject connectManySummary(int total, int succeeded, int failed, long elapsed) {
+		JSONObject jsonNode = new JSONObject();
+		try {
+			jsonNode.put("total", total);
+			jsonNode.put("succeeded", succeeded);
+			jsonNode.put("failed", failed);
+			jsonNode.put("elapsed", elapsed);
+		} catch (Exception _err) {
+			DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model connectMany \n\t", _err);
+		}
+		return jsonNode;
+	}
+
+	/**
+	 * 连接外围设备并开启一组特征的通知，服务发现、MTU协商和开启通知都在原生层依次完成；
+	 * 回调{address, result, mtu, reconnectAttempts, subscriptions:[{sUUID, cUUID, result}], timings:{connect, discovery, mtu, subscribe, total}}
+	 * 
+	 * @_dictParas 参数（K,V），可以通过此对象提供相关方法来获取参数值（Key：为参数名称）；
+	 * @_scriptEngine 当前Page JS上下文环境对象
+	 * @_callbackFuncName 回调函数名
+	 */
+	public void connectAndSubscribe(JSONObject _dictParas, final DoIScriptEngine _scriptEngine, final String _callbackFuncName) throws Exception {
+		stopLeScan("connect");
+		String address = DoJsonHelper.getString(_dictParas, "address", "");
+		// 每项为{sUUID, cUUID, encoding, batchInterval, batchCount}，后三项与registerListener的参数相同
+		List<String[]> subscriptions = new ArrayList<String[]>();
+		List<JSONObject> subscriptionOptions = new ArrayList<JSONObject>();
+		JSONArray jsonSubscriptions = _dictParas.optJSONArray("subscriptions");
+		if (jsonSubscriptions != null) {
+			for (int i = 0; i < jsonSubscriptions.length(); i++) {
+				JSONObject jsonSubscription = jsonSubscriptions.optJSONObject(i);
+				if (jsonSubscription != null) {
+					subscriptions.add(new String[] { DoJsonHelper.getString(jsonSubscription, "sUUID", ""), DoJsonHelper.getString(jsonSubscription, "cUUID", "") });
+					subscriptionOptions.add(jsonSubscription);
+				}
+			}
+		}
+		int[] encodings = new int[subscriptions.size()];
+		boolean isValid = true;
+		for (int i = 0; i < encodings.length; i++) {
+			String encodingName = DoJsonHelper.getString(subscriptionOptions.get(i), "encoding", "utf8");
+			encodings[i] = DoValueEncoding.parse(encodingName);
+			if (encodings[i] == DoValueEncoding.UNKNOWN) {
+				DoServiceContainer.getLogEngine().writeInfo("不支持的编码方式:" + encodingName, TAG);
+				isValid = false;
+			}
+		}
+		// 服务发现后申请的MTU，不大于23时不协商
+		int mtu = DoJsonHelper.getInt(_dictParas, "mtu", DoBluetoothLeService.REQUEST_MTU);
+		DoConnectPipeline pipeline = new DoConnectPipeline(address, mtu, subscriptions, encodings, new DoConnectPipeline.OnCompleteListener() {
+			@Override
+			public void onComplete(DoConnectPipeline pipeline) {
+				callBackAfterEvents(connectAndSubscribeResult(pipeline), _scriptEngine, _callbackFuncName);
+			}
+		});
+		// 地址格式或编码方式不正确时不发起连接，直接以-1结束
+		if (mBluetoothLeService == null || !isValid || !BluetoothAdapter.checkBluetoothAddress(address)) {
+			DoServiceContainer.getLogEngine().writeInfo("连接失败，address:" + address, TAG);
+			callBack(connectAndSubscribeResult(pipeline), _scriptEngine, _callbackFuncName);
+			return;
+		}
+		// 与registerListener相同，按设备记录编码方式和合并通知的设置
+		for (int i = 0; i < encodings.length; i++) {
+			String cUUID = subscriptions.get(i)[1].toLowerCase(Locale.US);
+			JSONObject jsonSubscription = subscriptionOptions.get(i);
+			mValueEncodings.put(address + "/" + cUUID, encodings[i]);
+			mNotificationBatcher.configure(address, cUUID, DoJsonHelper.getInt(jsonSubscription, "batchInterval", 0), DoJsonHelper.getInt(jsonSubscription, "batchCount", 0));
+		}
+		mBluetoothLeService.setLayoutCacheDir(_scriptEngine.getCurrentApp().getDataFS().getPathSysCache() + File.separator + "do_Bluetooth");
+		mBluetoothLeService.setTimeouts(DoJsonHelper.getInt(_dictParas, "connectTimeout", (int) DoBluetoothLeService.DEFAULT_CONNECT_TIMEOUT), DoJsonHelper.getInt(_dictParas, "discoveryTimeout", (int) DoBluetoothLeService.DEFAULT_DISCOVERY_TIMEOUT));
+		mBluetoothLeService.connectAndSubscribe(pipeline, getReconnectPolicy(_dictParas));
+	}
+
+	private JSONObject connectAndSubscribeResult(DoConnectPipeline pipeline) {
+		JSONObject jsonNode = new JSONObject();
+		try {
+			jsonNode.put("address", pipeline.getAddress());
+			jsonNode.put("result", pipeline.getResult());
+			jsonNode.put("mtu", pipeline.getNegotiatedMtu());
+			jsonNode.put("reconnectAttempts", pipeline.getReconnectAttempts());
+			JSONArray jsonSubscriptions = new JSONArray();
+			for (int i = 0; i < pipeline.getSubscriptionCount(); i++) {
+				JSONObject jsonSubscription = new JSONObject();
+				jsonSubscription.put("sUUID", pipeline.getSubscription(i)[0]);
+				jsonSubscription.put("cUUID", pipeline.getSubscription(i)[1]);
+				jsonSubscription.put("result", pipeline.getSubscriptionResult(i));
+				jsonSubscriptions.put(jsonSubscription);
+			}
+			jsonNode.put("subscriptions", jsonSubscriptions);
+			JSONObject jsonTimings = new JSONObject();
+			jsonTimings.put("connect", pipeline.getConnectTime());
+			jsonTimings.put("discovery", pipeline.getDiscoveryTime());
+			jsonTimings.put("mtu", pipeline.getMtuTime());
+			jsonTimings.put("subscribe", pipeline.getSubscribeTime());
+			jsonTimings.put("total", pipeline.getTotalTime());
+			jsonNode.put("timings", jsonTimings);
+		} catch (Exception _err) {
+			DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model connectAndSubscribe \n\t", _err);
+		}
+		return jsonNode;
+	}
+
+	/**
+	 * 断开指定设备的连接，其他设备不受影响；
+	 * 
+	 * @_dictParas 参数（K,V），可以通过此对象提供相关方法来获取参数值（Key：为参数名称）；
+	 * @_scriptEngine 当前Page JS上下文环境对象
+	 * @_invokeResult 用于返回方法结果对象
+	 */
+	public void disconnect(JSONObject _dictParas, DoIScriptEngine _scriptEngine, DoInvokeResult _invokeResult) throws Exception {
+		String address = DoJsonHelper.getString(_dictParas, "address", "");
+		_invokeResult.setResultBoolean(mBluetoothLeService != null && mBluetoothLeService.disconnect(address));
+	}
+
+	// 未指定address时使用唯一的连接
+	private String resolveAddress(String address) {
+		DoGattConnection connection = mBluetoothLeService == null ? null : mBluetoothLeService.getConnection(address);
+		return connection == null ? address : connection.getAddress();
+	}
+
 	private static IntentFilter makeGattUpdateIntentFilter() {
 		final IntentFilter intentFilter = new IntentFilter();
-		intentFilter.addAction(DoBluetoothLeService.ACTION_GATT_CONNECTED);
-		intentFilter.addAction(DoBluetoothLeService.ACTION_GATT_DISCONNECTED);
-		intentFilter.addAction(DoBluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-		intentFilter.addAction(DoBluetoothLeService.ACTION_DATA_AVAILABLE);
-		intentFilter.addAction(DoBluetoothLeService.CHARACTERISTIC_UUID);
-		intentFilter.addAction(DoBluetoothLeService.EXTRA_DATA);
 		intentFilter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
 		return intentFilter;
 	}
@@ -367,21 +1081,36 @@ public class do_Bluetooth_Model extends do_Bluetooth_MAbstract implements DoActi
 	 * @_callbackFuncName 回调函数名
 	 */
 	public void write(JSONObject _dictParas, DoIScriptEngine _scriptEngine, String _callbackFuncName) throws Exception {
+		// 连接多个设备时通过address指定设备
+		String address = resolveAddress(DoJsonHelper.getString(_dictParas, "address", ""));
 		String data = DoJsonHelper.getString(_dictParas, "data", "");
 		String sUUID = DoJsonHelper.getString(_dictParas, "sUUID", "");
 		String cUUID = DoJsonHelper.getString(_dictParas, "cUUID", "");
 		String type = DoJsonHelper.getString(_dictParas, "type", "string"); // binary
-		int length = DoJsonHelper.getInt(_dictParas, "length", 20);
+		// 未指定length时按当前连接协商的MTU分包
+		int length = DoJsonHelper.getInt(_dictParas, "length", 0);
+		if (length <= 0) {
+			length = mBluetoothLeService.getMaxWriteLength(address);
+		}
+		String writeType = DoJsonHelper.getString(_dictParas, "writeType", "response"); // noResponse
 
-		PendingWrite pw = null;
+		DoWriteChunkSource pw = null;
 		if ("binary".equals(type)) {
-			pw = mBluetoothLeService.new PendingWriteBinary(data, length);
+			try {
+				pw = DoWriteChunkSource.fromHex(data, length);
+			} catch (IllegalArgumentException _err) {
+				DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model write \n\t", _err);
+				callBack(-1, _scriptEngine, _callbackFuncName);
+				return;
+			}
 		} else {
-			pw = mBluetoothLeService.new PendingWriteText(data, length);
+			pw = DoWriteChunkSource.fromText(data, length);
 		}
 
-		int _result = mBluetoothLeService.writeValue(pw, true, sUUID, cUUID);
-		callBack(_result, _scriptEngine, _callbackFuncName);
+		int _result = mBluetoothLeService.writeValue(address, pw, true, sUUID, cUUID, "noResponse".equals(writeType), writeOnComplete(address, _scriptEngine, _callbackFuncName));
+		if (_result != 0) {
+			callBack(_result, _scriptEngine, _callbackFuncName);
+		}
 	}
 
 	/**
@@ -392,19 +1121,116 @@ public class do_Bluetooth_Model extends do_Bluetooth_MAbstract implements DoActi
 	 * @_callbackFuncName 回调函数名
 	 */
 	public void read(JSONObject _dictParas, DoIScriptEngine _scriptEngine, String _callbackFuncName) throws Exception {
+		// 连接多个设备时通过address指定设备
+		String address = resolveAddress(DoJsonHelper.getString(_dictParas, "address", ""));
 		String sUUID = DoJsonHelper.getString(_dictParas, "sUUID", "");
 		String cUUID = DoJsonHelper.getString(_dictParas, "cUUID", "");
 //		int length = DoJsonHelper.getInt(_dictParas, "length", 20);
 //		PendingWrite pw = mBluetoothLeService.new PendingWrite(data, length);
-		int _result = mBluetoothLeService.readValue(true, sUUID, cUUID);
-		callBack(_result, _scriptEngine, _callbackFuncName);
+		int _result = mBluetoothLeService.readValue(address, true, sUUID, cUUID, callBackOnComplete(_scriptEngine, _callbackFuncName));
+		if (_result != 0) {
+			callBack(_result, _scriptEngine, _callbackFuncName);
+		}
 	}
 
 	public void registerListener(JSONObject _dictParas, DoIScriptEngine _scriptEngine, String _callbackFuncName) throws Exception {
+		String address = resolveAddress(DoJsonHelper.getString(_dictParas, "address", ""));
 		String sUUID = DoJsonHelper.getString(_dictParas, "sUUID", "");
 		String cUUID = DoJsonHelper.getString(_dictParas, "cUUID", "");
-		int _result = mBluetoothLeService.setListener(true, sUUID, cUUID);
-		callBack(_result, _scriptEngine, _callbackFuncName);
+		// hex、base64、utf8、gbk，二进制数据需要使用hex或base64
+		String encodingName = DoJsonHelper.getString(_dictParas, "encoding", "utf8");
+		int encoding = DoValueEncoding.parse(encodingName);
+		if (encoding == DoValueEncoding.UNKNOWN) {
+			DoServiceContainer.getLogEngine().writeInfo("不支持的编码方式:" + encodingName, TAG);
+			callBack(-1, _scriptEngine, _callbackFuncName);
+			return;
+		}
+		mValueEncodings.put(address + "/" + cUUID.toLowerCase(Locale.US), encoding);
+		// 合并通知，batchInterval毫秒内或累计batchCount条后一次性触发characteristicChanged，都不设置时逐条触发
+		int batchInterval = DoJsonHelper.getInt(_dictParas, "batchInterval", 0);
+		int batchCount = DoJsonHelper.getInt(_dictParas, "batchCount", 0);
+		mNotificationBatcher.configure(address, cUUID.toLowerCase(Locale.US), batchInterval, batchCount);
+		int _result = mBluetoothLeService.setListener(address, true, sUUID, cUUID, encoding, callBackOnComplete(_scriptEngine, _callbackFuncName));
+		if (_result != 0) {
+			callBack(_result, _scriptEngine, _callbackFuncName);
+		}
+	}
+
+	// 最后一个分包写完后回调JS，并触发writeComplete事件，带上本次传输的统计数据
+	private DoGattOperation.OnCompleteListener writeOnComplete(final String address, final DoIScriptEngine _scriptEngine, final String _callbackFuncName) {
+		return new DoGattOperation.OnCompleteListener() {
+			@Override
+			public void onComplete(DoGattOperation operation, int result) {
+				DoGattOperation.Write write = (DoGattOperation.Write) operation;
+				JSONObject jsonNode = new JSONObject();
+				try {
+					jsonNode.put("address", address);
+					jsonNode.put("uuid", write.getCharacteristic().getUuid().toString());
+					jsonNode.put("result", result);
+					jsonNode.put("totalBytes", write.getWrittenBytes());
+					jsonNode.put("chunks", write.getChunkCount());
+					jsonNode.put("elapsed", write.getElapsedTime());
+					jsonNode.put("bytesPerSecond", write.getBytesPerSecond());
+				} catch (Exception _err) {
+					DoServiceContainer.getLogEngine().writeError("do_Bluetooth_Model writeComplete event \n\t", _err);
+				}
+				fireOther("writeComplete", jsonNode);
+				callBackAfterEvents(result, _scriptEngine, _callbackFuncName);
+			}
+		};
+	}
+
+	// GATT操作在队列中执行完成后再回调JS，0成功，-1失败；排在操作中触发的事件(如读到的characteristicChanged)之后
+	private DoGattOperation.OnCompleteListener callBackOnComplete(final DoIScriptEngine _scriptEngine, final String _callbackFuncName) {
+		return new DoGattOperation.OnCompleteListener() {
+			@Override
+			public void onComplete(DoGattOperation operation, int result) {
+				callBackAfterEvents(result, _scriptEngine, _callbackFuncName);
+			}
+		};
+	}
+
+	/**
+	 * 设置接收参数，按stopFlag把通知数据拼成完整的帧后再触发receive事件；
+	 * 
+	 * @_dictParas 参数（K,V），可以通过此对象提供相关方法来获取参数值（Key：为参数名称）；
+	 * @_scriptEngine 当前Page JS上下文环境对象
+	 * @_invokeResult 用于返回方法结果对象
+	 */
+	public void setReceive(JSONObject _dictParas, DoIScriptEngine _scriptEngine, DoInvokeResult _invokeResult) throws Exception {
+		// length:固定长度; flag:结束标志; header:stopValue个字节的大端长度头; 为空时取消分帧
+		String stopFlag = DoJsonHelper.getString(_dictParas, "stopFlag", "");
+		String stopValue = DoJsonHelper.getString(_dictParas, "stopValue", "");
+		String type = DoJsonHelper.getString(_dictParas, "type", "UTF-8");
+		// 不指定时对所有特征生效
+		String cUUID = DoJsonHelper.getString(_dictParas, "cUUID", "").toLowerCase(Locale.US);
+		if ("".equals(stopFlag)) {
+			mReceivers.remove(cUUID);
+			return;
+		}
+		int encoding = DoValueEncoding.parse(type);
+		if (encoding == DoValueEncoding.UNKNOWN || encoding == DoValueEncoding.BASE64) {
+			_invokeResult.setError("不支持的接收数据类型:" + type);
+			return;
+		}
+		DoFrameAssembler assembler;
+		try {
+			if ("length".equals(stopFlag)) {
+				assembler = DoFrameAssembler.byLength(Integer.parseInt(stopValue));
+			} else if ("flag".equals(stopFlag)) {
+				// 结束标志与接收数据使用相同的表示方式
+				assembler = DoFrameAssembler.byFlag(encoding == DoValueEncoding.HEX ? DoHexCodec.decode(stopValue) : stopValue.getBytes(encoding == DoValueEncoding.GBK ? "GBK" : "UTF-8"));
+			} else if ("header".equals(stopFlag)) {
+				assembler = DoFrameAssembler.byHeader(Integer.parseInt(stopValue));
+			} else {
+				_invokeResult.setError("不支持的接收数据结束标识:" + stopFlag);
+				return;
+			}
+		} catch (IllegalArgumentException _err) {
+			_invokeResult.setError("接收数据结束标识的值无效:" + stopValue);
+			return;
+		}
+		mReceivers.put(cUUID, new Receiver(assembler, encoding, type));
 	}
 
 	@Override
@@ -417,7 +1243,12 @@ public class do_Bluetooth_Model extends do_Bluetooth_MAbstract implements DoActi
 	@Override
 	public void dispose() {
 		super.dispose();
+		stopLeScan(null);
+		mNotificationBatcher.clear();
 		if (isBind) {
+			if (mBluetoothLeService != null) {
+				mBluetoothLeService.setOnGattEventListener(null);
+			}
 			mContext.unbindService(mServiceConnection);
 			mBluetoothLeService = null;
 			isBind = false;
@@ -0,0 +1,101 @@
+package dotest.module;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import doext.bluetooth.le.DoHexCodec;
+
+/**
+ * DoHexCodec的编解码校验，不依赖Android，可以直接用java运行，失败时抛出AssertionError
+ */
+public class DoHexCodecTest {
+
+	public static void main(String[] args) {
+		testRoundTrip();
+		testKnownValues();
+		testUpperCase();
+		testOddLength();
+		testInvalidChar();
+		testOffsets();
+		System.out.println("DoHexCodecTest passed");
+	}
+
+	// 随机长度和内容，编码后再解码应得到原数据
+	private static void testRoundTrip() {
+		Random random = new Random(0);
+		for (int n = 0; n < 1000; n++) {
+			byte[] data = new byte[random.nextInt(600)];
+			random.nextBytes(data);
+			String hex = DoHexCodec.encode(data);
+			check(hex.length() == data.length * 2, "encoded length " + hex.length());
+			check(Arrays.equals(data, DoHexCodec.decode(hex)), "round trip " + hex);
+		}
+		check(DoHexCodec.encode(null).length() == 0, "encode null");
+		check(DoHexCodec.decode("").length == 0, "decode empty");
+	}
+
+	private static void testKnownValues() {
+		byte[] data = new byte[] { 0x00, 0x01, 0x7F, (byte) 0x80, (byte) 0xAB, (byte) 0xFF };
+		check("00017f80abff".equals(DoHexCodec.encode(data)), "encode " + DoHexCodec.encode(data));
+		check(Arrays.equals(data, DoHexCodec.decode("00017f80abff")), "decode lower case");
+	}
+
+	private static void testUpperCase() {
+		byte[] data = new byte[] { (byte) 0xAB, (byte) 0xCD, (byte) 0xEF, 0x09 };
+		check(Arrays.equals(data, DoHexCodec.decode("ABCDEF09")), "decode upper case");
+		check(Arrays.equals(data, DoHexCodec.decode("aBcDeF09")), "decode mixed case");
+	}
+
+	private static void testOddLength() {
+		expectInvalid("a");
+		expectInvalid("abc");
+		expectInvalid("0011223");
+	}
+
+	private static void testInvalidChar() {
+		expectInvalid("0g");
+		expectInvalid("g0");
+		expectInvalid("0x12");
+		expectInvalid("12 4");
+		expectInvalid("1-");
+		expectInvalid("é12");
+		expectInvalid("12中3");
+	}
+
+	// 带偏移量和目标数组的版本只读写指定范围
+	private static void testOffsets() {
+		byte[] src = new byte[] { 0x11, 0x22, 0x33, 0x44 };
+		char[] chars = new char[8];
+		Arrays.fill(chars, '*');
+		int count = DoHexCodec.encode(src, 1, 2, chars, 2);
+		check(count == 4, "encode count " + count);
+		check("**2233**".equals(new String(chars)), "encode offset " + new String(chars));
+		check("2233".equals(DoHexCodec.encode(src, 1, 2)), "encode range");
+
+		byte[] dst = new byte[4];
+		count = DoHexCodec.decode("xx5566yy", 2, 4, dst, 1);
+		check(count == 2, "decode count " + count);
+		check(Arrays.equals(new byte[] { 0, 0x55, 0x66, 0 }, dst), "decode offset " + Arrays.toString(dst));
+		try {
+			DoHexCodec.decode("xx556", 2, 3, dst, 0);
+			throw new AssertionError("odd range accepted");
+		} catch (IllegalArgumentException e) {
+			// 期望的异常
+		}
+	}
+
+	private static void expectInvalid(String hex) {
+		try {
+			DoHexCodec.decode(hex);
+		} catch (IllegalArgumentException e) {
+			return;
+		}
+		throw new AssertionError("accepted invalid hex \"" + hex + "\"");
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+}